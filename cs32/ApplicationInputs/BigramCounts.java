@@ -0,0 +1,259 @@
+package edu.brown.cs.mmines.ApplicationInputs;
+
+import java.util.Arrays;
+
+/**
+ * Class for counting bigrams of word ids. A bigram is packed into one long,
+ * the first word's id in the high half and the second's in the low, and the
+ * counts are kept in an open addressing table of those longs, probed
+ * linearly, with the counts in a parallel int array. That is twelve bytes a
+ * slot and no objects at all, where a HashMap of "w1 w2" Strings to Integers
+ * takes an entry, a String, its chars and an Integer per bigram.
+ *
+ * @author maxmines
+ *
+ */
+public final class BigramCounts {
+  /**
+   * The most slots a table has, the largest power of two an array can be.
+   */
+  static final int MAX_CAPACITY = 1 << 30;
+  // ids are non-negative, so no bigram packs to this
+  private static final long EMPTY = -1L;
+
+  private long[] keys;
+  private int[] counts;
+  private int size = 0;
+
+  /**
+   * Constructor for BigramCounts.
+   */
+  public BigramCounts() {
+    keys = new long[1024];
+    counts = new int[1024];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /**
+   * Constructor for BigramCounts over a table as walked with keyAt and
+   * countAt, such as one read back from a file. The table must have been
+   * laid out by this class, as its slots depend on the hashing.
+   *
+   * @param keys
+   *          - the key in each slot, -1 in empty ones.
+   * @param counts
+   *          - the count in each slot.
+   */
+  BigramCounts(long[] keys, int[] counts) {
+    if (keys.length != counts.length || Integer.bitCount(keys.length) != 1) {
+      throw new IllegalArgumentException(
+          "bigram table must be a power of two slots");
+    }
+    this.keys = keys;
+    this.counts = counts;
+    for (long key : keys) {
+      if (key != EMPTY) {
+        size++;
+      }
+    }
+    if (size * 4L > keys.length * 3L) {
+      throw new IllegalArgumentException("bigram table is too full");
+    }
+  }
+
+  /**
+   * Packs a bigram of ids into a long.
+   *
+   * @param first
+   *          - id of the first word.
+   * @param second
+   *          - id of the second word.
+   * @return - the bigram's key.
+   */
+  public static long key(int first, int second) {
+    return ((long) first << 32) | (second & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Getter method for the first id of a key.
+   *
+   * @param key
+   *          - a bigram's key.
+   * @return - id of its first word.
+   */
+  public static int first(long key) {
+    return (int) (key >>> 32);
+  }
+
+  /**
+   * Getter method for the second id of a key.
+   *
+   * @param key
+   *          - a bigram's key.
+   * @return - id of its second word.
+   */
+  public static int second(long key) {
+    return (int) key;
+  }
+
+  private static int slot(long key, int mask) {
+    // the finalizer of MurmurHash3, so that nearby ids spread out
+    key ^= key >>> 33;
+    key *= 0xFF51AFD7ED558CCDL;
+    key ^= key >>> 33;
+    key *= 0xC4CEB9FE1A85EC53L;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+
+  /**
+   * Adds to the count of a bigram.
+   *
+   * @param first
+   *          - id of the first word.
+   * @param second
+   *          - id of the second word.
+   * @param n
+   *          - how much to add.
+   * @throws IllegalStateException
+   *           - if the bigram is new and the table can't grow to hold it.
+   */
+  public void add(int first, int second, int n) {
+    long key = key(first, second);
+    int mask = keys.length - 1;
+    int at = slot(key, mask);
+    while (keys[at] != EMPTY) {
+      if (keys[at] == key) {
+        counts[at] += n;
+        return;
+      }
+      at = (at + 1) & mask;
+    }
+    // kept at most three quarters full
+    if ((size + 1) * 4L > keys.length * 3L) {
+      reserve(size + 1);
+      mask = keys.length - 1;
+      at = slot(key, mask);
+      while (keys[at] != EMPTY) {
+        at = (at + 1) & mask;
+      }
+    }
+    keys[at] = key;
+    counts[at] = n;
+    size++;
+  }
+
+  /**
+   * Getter method for the count of a bigram.
+   *
+   * @param first
+   *          - id of the first word.
+   * @param second
+   *          - id of the second word.
+   * @return - the count, 0 if the bigram hasn't been seen.
+   */
+  public int get(int first, int second) {
+    long key = key(first, second);
+    int mask = keys.length - 1;
+    for (int at = slot(key, mask); keys[at] != EMPTY; at = (at + 1) & mask) {
+      if (keys[at] == key) {
+        return counts[at];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Grows the table, if need be, to hold a number of bigrams without growing
+   * again. Before copying in another table slot by slot, reserve for all of
+   * it: its keys come in hash order, and going into a smaller table they
+   * would all pile up in one run of slots.
+   *
+   * @param bigrams
+   *          - the number of bigrams.
+   * @throws IllegalStateException
+   *           - if that is more than a table of MAX_CAPACITY slots holds.
+   */
+  public void reserve(int bigrams) {
+    if (bigrams * 4L > MAX_CAPACITY * 3L) {
+      throw new IllegalStateException("too many distinct bigrams, at most "
+          + (MAX_CAPACITY / 4 * 3) + " fit in one table");
+    }
+    int capacity = keys.length;
+    while (bigrams * 4L > capacity * 3L) {
+      capacity *= 2;
+    }
+    if (capacity != keys.length) {
+      rehash(capacity);
+    }
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldCounts = counts;
+    keys = new long[capacity];
+    counts = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int at = slot(oldKeys[i], mask);
+        while (keys[at] != EMPTY) {
+          at = (at + 1) & mask;
+        }
+        keys[at] = oldKeys[i];
+        counts[at] = oldCounts[i];
+      }
+    }
+  }
+
+  /**
+   * Getter method for the number of slots, for walking the table with
+   * keyAt and countAt.
+   *
+   * @return - the number of slots.
+   */
+  public int capacity() {
+    return this.keys.length;
+  }
+
+  /**
+   * Getter method for the key in a slot.
+   *
+   * @param slot
+   *          - the slot, from 0 to capacity() - 1.
+   * @return - the key, or -1 if the slot is empty.
+   */
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  /**
+   * Getter method for the count in a slot.
+   *
+   * @param slot
+   *          - the slot, from 0 to capacity() - 1.
+   * @return - the count, meaningless if the slot is empty.
+   */
+  public int countAt(int slot) {
+    return counts[slot];
+  }
+
+  /**
+   * Getter method for the number of distinct bigrams.
+   *
+   * @return - the number of bigrams.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Bytes taken by the table.
+   *
+   * @return - the size in bytes.
+   */
+  public long getMemoryBytes() {
+    return (8L + 4) * keys.length;
+  }
+}
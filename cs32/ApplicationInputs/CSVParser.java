@@ -5,14 +5,40 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.MalformedParametersException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 /**
  * Class for parsing CSV files, handcrafted.
  */
 public final class CSVParser {
+  // target size of the chunks a streaming parse splits the file into
+  private static final int CHUNK_BYTES = 1 << 23;
+  // longest line the streaming parse will look across for a chunk boundary
+  private static final int MAX_LINE_BYTES = 1 << 16;
+  // powers of ten that are exact as doubles, for the fast double path
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
 
   /**
    * Private constructor.
@@ -80,4 +106,365 @@ public final class CSVParser {
 
   }
 
+  /**
+   * Callback for streaming parses, handed every data row of its chunk of the
+   * file, in file order.
+   */
+  public interface RowHandler {
+    /**
+     * Handles one row. The row object is reused for the next row, so nothing
+     * it returns as a CharSequence should be kept.
+     *
+     * @param row
+     *          - the current row.
+     */
+    void row(Row row);
+  }
+
+  /**
+   * Streaming parse of a .csv file. The header line is checked against
+   * headstandards as parseFile does, then the rest of the file is split at
+   * line boundaries into chunks of about 8MB that are read through a
+   * FileChannel and parsed in parallel. Each chunk gets its own handler from
+   * the supplier, so handlers never need to synchronize; no String[] is ever
+   * made for a row.
+   *
+   * @param filePath
+   *          - a string representing the path to the desired file to be parsed.
+   * @param headstandards
+   *          - what the user expects the first line to look like, e.g.
+   *          "StarID,ProperName,X,Y,Z".
+   * @param handlers
+   *          - makes a new handler for each chunk.
+   * @param <H>
+   *          - the type of handler.
+   * @return - the handlers, in file order, each having seen the rows of its
+   *         chunk in order.
+   * @throws MalformedParametersException
+   *           - parser found and opened file, but content was malformed.
+   * @throws FileNotFoundException
+   *           - trouble opening or reading file
+   */
+  public static <H extends RowHandler> List<H> parseFile(String filePath,
+      String headstandards, Supplier<H> handlers)
+      throws MalformedParametersException, FileNotFoundException {
+    int numberOfParams = headstandards.split(",").length;
+    try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+        StandardOpenOption.READ)) {
+      long size = channel.size();
+
+      long dataStart = nextLineStart(channel, 0, size);
+      if (dataStart < 0) {
+        dataStart = size;
+      }
+      String firstLine = decode(read(channel, 0, (int) Math.min(dataStart,
+          MAX_LINE_BYTES)), 0, (int) Math.min(dataStart, MAX_LINE_BYTES))
+          .toString();
+      if (!(stripLineEnd(firstLine).equals(headstandards))) {
+        throw new MalformedParametersException(
+            "first line doesn't match header standards");
+      }
+
+      // chunk boundaries, each one just after a newline
+      List<Long> bounds = new ArrayList<>();
+      bounds.add(dataStart);
+      long next = dataStart + CHUNK_BYTES;
+      while (next < size) {
+        long boundary = nextLineStart(channel, next, size);
+        if (boundary < 0) {
+          break;
+        }
+        bounds.add(boundary);
+        next = boundary + CHUNK_BYTES;
+      }
+      bounds.add(size);
+
+      int chunks = bounds.size() - 1;
+      List<H> toReturn = new ArrayList<>(chunks);
+      for (int i = 0; i < chunks; i++) {
+        toReturn.add(handlers.get());
+      }
+      IntStream.range(0, chunks).parallel().forEach(new IntConsumer() {
+        @Override
+        public void accept(int i) {
+          long from = bounds.get(i);
+          int length = (int) (bounds.get(i + 1) - from);
+          try {
+            byte[] bytes = read(channel, from, length);
+            CharBuffer chars = decode(bytes, 0, length);
+            parseChunk(chars, numberOfParams, toReturn.get(i));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+      });
+      return toReturn;
+    } catch (IOException | UncheckedIOException e) {
+      throw new FileNotFoundException("couldn't open file");
+    }
+  }
+
+  /**
+   * Finds the start of the line after a given position.
+   *
+   * @return - the offset just past the next newline, or -1 if there is none.
+   */
+  private static long nextLineStart(FileChannel channel, long from, long size)
+      throws IOException {
+    long position = from;
+    while (position < size) {
+      int length = (int) Math.min(MAX_LINE_BYTES, size - position);
+      byte[] window = read(channel, position, length);
+      for (int i = 0; i < length; i++) {
+        if (window[i] == '\n') {
+          return position + i + 1;
+        }
+      }
+      position += length;
+    }
+    return -1;
+  }
+
+  private static byte[] read(FileChannel channel, long from, int length)
+      throws IOException {
+    byte[] bytes = new byte[length];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      // positional reads, so chunks can be read concurrently
+      if (channel.read(buffer, from + buffer.position()) < 0) {
+        throw new IOException("file shrank while being read");
+      }
+    }
+    return bytes;
+  }
+
+  private static CharBuffer decode(byte[] bytes, int from, int length)
+      throws CharacterCodingException {
+    return StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+        .decode(ByteBuffer.wrap(bytes, from, length));
+  }
+
+  private static String stripLineEnd(String line) {
+    int end = line.length();
+    while (end > 0 && (line.charAt(end - 1) == '\n'
+        || line.charAt(end - 1) == '\r')) {
+      end--;
+    }
+    return line.substring(0, end);
+  }
+
+  /**
+   * Splits a chunk into rows and fields, and hands the rows to a handler.
+   */
+  private static void parseChunk(CharBuffer chars, int numberOfParams,
+      RowHandler handler) {
+    char[] buf = chars.array();
+    int end = chars.arrayOffset() + chars.limit();
+    Row row = new Row(buf, numberOfParams);
+    int lineStart = chars.arrayOffset();
+    while (lineStart < end) {
+      int lineEnd = lineStart;
+      while (lineEnd < end && buf[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      int contentEnd = lineEnd;
+      if (contentEnd > lineStart && buf[contentEnd - 1] == '\r') {
+        contentEnd--;
+      }
+      row.split(lineStart, contentEnd);
+      if (row.fieldCount() != numberOfParams) {
+        throw new MalformedParametersException("CSV data is malformed");
+      }
+      handler.row(row);
+      lineStart = lineEnd + 1;
+    }
+  }
+
+  /**
+   * One row of a streaming parse: field boundaries over the chunk's
+   * characters, with parsers that read numbers straight out of them.
+   */
+  public static final class Row {
+    private final char[] buf;
+    private int[] starts;
+    private int[] ends;
+    private int fields = 0;
+    private final Field view = new Field();
+
+    Row(char[] buf, int expectedFields) {
+      this.buf = buf;
+      this.starts = new int[expectedFields + 1];
+      this.ends = new int[expectedFields + 1];
+    }
+
+    private void split(int from, int to) {
+      fields = 0;
+      int fieldStart = from;
+      for (int i = from; i <= to; i++) {
+        if (i == to || buf[i] == ',') {
+          if (fields == starts.length) {
+            starts = Arrays.copyOf(starts, fields * 2);
+            ends = Arrays.copyOf(ends, fields * 2);
+          }
+          starts[fields] = fieldStart;
+          ends[fields] = i;
+          fields++;
+          fieldStart = i + 1;
+        }
+      }
+    }
+
+    /**
+     * Number of fields in the row.
+     *
+     * @return - the field count.
+     */
+    public int fieldCount() {
+      return this.fields;
+    }
+
+    /**
+     * A field as a CharSequence. The view is reused by the next call.
+     *
+     * @param i
+     *          - the field index.
+     * @return - a view of the field's characters.
+     */
+    public CharSequence field(int i) {
+      view.set(starts[i], ends[i]);
+      return view;
+    }
+
+    /**
+     * A field as a String.
+     *
+     * @param i
+     *          - the field index.
+     * @return - the field, "" if it is empty.
+     */
+    public String stringField(int i) {
+      if (starts[i] == ends[i]) {
+        return "";
+      }
+      return new String(buf, starts[i], ends[i] - starts[i]);
+    }
+
+    /**
+     * A field parsed as an int.
+     *
+     * @param i
+     *          - the field index.
+     * @return - the value.
+     * @throws NumberFormatException
+     *           - if the field isn't an int.
+     */
+    public int intField(int i) throws NumberFormatException {
+      int pos = starts[i];
+      int end = ends[i];
+      boolean negative = false;
+      if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+        negative = buf[pos] == '-';
+        pos++;
+      }
+      if (pos == end || end - pos > 9) {
+        // empty, or long enough that it might overflow
+        return Integer.parseInt(stringField(i));
+      }
+      int value = 0;
+      for (; pos < end; pos++) {
+        int digit = buf[pos] - '0';
+        if (digit < 0 || digit > 9) {
+          return Integer.parseInt(stringField(i));
+        }
+        value = value * 10 + digit;
+      }
+      return negative ? -value : value;
+    }
+
+    /**
+     * A field parsed as a double. Plain decimals with at most 15 significant
+     * digits are read directly, which is exact; anything else goes through
+     * Double.parseDouble.
+     *
+     * @param i
+     *          - the field index.
+     * @return - the value.
+     * @throws NumberFormatException
+     *           - if the field isn't a double.
+     */
+    public double doubleField(int i) throws NumberFormatException {
+      int pos = starts[i];
+      int end = ends[i];
+      boolean negative = false;
+      if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+        negative = buf[pos] == '-';
+        pos++;
+      }
+      long mantissa = 0;
+      int digits = 0;
+      int scale = 0;
+      boolean seenDigit = false;
+      boolean seenPoint = false;
+      for (; pos < end; pos++) {
+        char c = buf[pos];
+        if (c >= '0' && c <= '9') {
+          seenDigit = true;
+          if (mantissa != 0 || c != '0') {
+            digits++;
+          }
+          mantissa = mantissa * 10 + (c - '0');
+          if (seenPoint) {
+            scale++;
+          }
+        } else if (c == '.' && !seenPoint) {
+          seenPoint = true;
+        } else {
+          break;
+        }
+      }
+      if (pos != end || !seenDigit || digits > 15
+          || scale >= POWERS_OF_TEN.length) {
+        // exponents, long mantissas and malformed input
+        return Double.parseDouble(stringField(i));
+      }
+      double value = mantissa / POWERS_OF_TEN[scale];
+      return negative ? -value : value;
+    }
+
+    /**
+     * Reusable CharSequence view of one field.
+     */
+    private final class Field implements CharSequence {
+      private int from;
+      private int to;
+
+      void set(int start, int end) {
+        this.from = start;
+        this.to = end;
+      }
+
+      @Override
+      public int length() {
+        return to - from;
+      }
+
+      @Override
+      public char charAt(int index) {
+        return buf[from + index];
+      }
+
+      @Override
+      public CharSequence subSequence(int start, int end) {
+        return new String(buf, from + start, end - start);
+      }
+
+      @Override
+      public String toString() {
+        return new String(buf, from, to - from);
+      }
+    }
+  }
+
 }
@@ -1,30 +1,57 @@
 package edu.brown.cs.mmines.ApplicationInputs;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
+import edu.brown.cs.mmines.TextAnalysisUtilities.Tokenizer;
 import edu.brown.cs.mmines.Trie.TrieNode;
 
 /**
  * Class for reading in corpora and returns tabs of uni/bigrams. Can optionally
  * add to a given trie.
  *
+ * Words are numbered by a Vocabulary as they are first seen; unigram counts
+ * are an int array indexed by id, and bigram counts a BigramCounts keyed by
+ * pairs of ids, so counting allocates nothing for words seen before. The
+ * String getters look the ids up, and getDictionary is a view of the
+ * unigram counts.
+ *
  * @author maxmines
  *
  */
 public class CorpusReader {
+  // about how many bytes of a file one thread counts at a time
+  private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final int BUFFER_BYTES = 64 * 1024;
+  private static final int NONE = -1;
   private boolean init = false;
-  private HashMap<String, Integer> unigrams = new HashMap<String, Integer>();
-  private HashMap<String, Integer> bigrams = new HashMap<String, Integer>();
+  private Counts counts = new Counts();
+  private final Map<String, Integer> dictionary = new Dictionary();
   private Connection conn;
 
   /**
@@ -62,15 +89,9 @@ public class CorpusReader {
 
     // go through, treat and add to unigrams, etc.
     while (rs.next()) {
-      String currentLine = rs.getString(1);
-      currentLine = currentLine.replaceAll("[^a-zA-Z]", " ");
-      currentLine = currentLine.replaceAll("\\s{2,}", " ");
-      currentLine = currentLine.replaceAll("\\s$", "");
-      currentLine = currentLine.toLowerCase();
-      String[] chopped = currentLine.split(" ");
+      counts.tokens.reset(rs.getString(1));
 
-      addUnigrams(chopped, trie);
-      addBigrams(chopped, null);
+      counts.addLine(NONE, trie);
 
     }
     init = true;
@@ -95,21 +116,11 @@ public class CorpusReader {
       BufferedReader br = new BufferedReader(fr);
 
       String currentLine;
-      String lastLineWord = null;
+      // id of the last word of the previous line, or NONE
+      int lastLineWord = NONE;
       while ((currentLine = br.readLine()) != null) {
-        currentLine = currentLine.replaceAll("[^a-zA-Z]", " ");
-        currentLine = currentLine.replaceAll("\\s{2,}", " ");
-        currentLine = currentLine.replaceAll("\\s$", "");
-        currentLine = currentLine.toLowerCase();
-        String[] chopped = currentLine.split(" ");
-
-        if (chopped.length != 0) {
-          addUnigrams(chopped, trie);
-          addBigrams(chopped, lastLineWord);
-          lastLineWord = chopped[chopped.length - 1];
-        } else {
-          lastLineWord = null;
-        }
+        counts.tokens.reset(currentLine);
+        lastLineWord = counts.addLine(lastLineWord, trie);
       }
       init = true;
 
@@ -122,74 +133,398 @@ public class CorpusReader {
   }
 
   /**
-   * Alternative method constructor for readCorpus. In this case, no trie is
-   * specified, and thus the read in doesn't add to trie.
+   * Reads in a corpus file, or every file in a directory, in parallel, with
+   * the same result as calling readCorpus on each file. Files are cut into
+   * chunks of whole lines, which a worker per thread of the common pool takes
+   * one at a time and counts into the worker's own tables, so workers never
+   * contend; a worker's tables are added into the class library when it runs
+   * out of chunks, and the words new to it are added to the trie then, once
+   * each. A chunk also notes the first word of its first line and the last
+   * word of its last, for the bigrams joining two chunks of a file.
    *
-   * @param filepath
-   *          - a string to the file we wish to read in.
+   * @param path
+   *          - a corpus file, or a directory whose files are all corpora.
+   * @param trie
+   *          - root of Trie where this corpus will add to. If null, doesn't.
    * @throws FileNotFoundException
-   *           - not found exception when can't read file.
+   *           not found exception when can't find the file or directory.
    * @throws IOException
-   *           - something was wrong with buffered reader.
+   *           when reading a file fails.
    */
-  public void readCorpus(String filepath)
+  public void readCorpusParallel(String path, TrieNode trie)
       throws FileNotFoundException, IOException {
-    readCorpus(filepath, null);
+    readCorpusParallel(path, trie, CHUNK_BYTES);
   }
 
   /**
-   * Short method for adding unigrams to unigrams hashmap.
+   * readCorpusParallel with a given chunk size.
    *
-   * @param currentLine
-   *          - the current line being analyzed.
+   * @param path
+   *          - a corpus file, or a directory whose files are all corpora.
+   * @param trie
+   *          - root of Trie where this corpus will add to. If null, doesn't.
+   * @param chunkBytes
+   *          - about how many bytes each chunk is.
+   * @throws FileNotFoundException
+   *           not found exception when can't find the file or directory.
+   * @throws IOException
+   *           when reading a file fails.
    */
-  private void addUnigrams(String[] currentLine, TrieNode trie) {
-    for (String word : currentLine) {
-      if (word.length() != 0) {
-        if (unigrams.containsKey(word)) {
-          unigrams.put(word, (unigrams.get(word) + 1));
-        } else {
-          unigrams.put(word, 1);
-          if (trie != null) {
-            trie.insert(word);
+  void readCorpusParallel(String path, TrieNode trie, long chunkBytes)
+      throws FileNotFoundException, IOException {
+    File source = new File(path);
+    File[] files;
+    if (source.isDirectory()) {
+      files = source.listFiles();
+      if (files == null) {
+        throw new IOException("ERROR: CorpusReader could not list directory.");
+      }
+      Arrays.sort(files);
+    } else if (source.isFile()) {
+      files = new File[] {source};
+    } else {
+      throw new FileNotFoundException(
+          "ERROR: CorpusReader could not locate file.");
+    }
+
+    List<Chunk> chunks = new ArrayList<Chunk>();
+    for (File file : files) {
+      long length = file.isFile() ? file.length() : 0;
+      for (long start = 0; start < length; start += chunkBytes) {
+        long end = Math.min(length, start + chunkBytes);
+        chunks.add(new Chunk(file, start, end));
+      }
+    }
+
+    // each worker keeps its tables only until it has added them in, so none
+    // outlive the read
+    ConcurrentLinkedQueue<Chunk> toCount = new ConcurrentLinkedQueue<Chunk>(
+        chunks);
+    // the calling thread works too
+    int workers = Math.min(ForkJoinPool.getCommonPoolParallelism() + 1,
+        chunks.size());
+    try {
+      IntStream.range(0, workers).parallel().forEach(new IntConsumer() {
+        @Override
+        public void accept(int worker) {
+          Counts table = new Counts();
+          Chunk chunk;
+          while ((chunk = toCount.poll()) != null) {
+            try {
+              chunk.count(table);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          synchronized (counts) {
+            counts.addAll(table, trie);
           }
         }
+      });
+    } catch (UncheckedIOException e) {
+      throw new IOException("ERROR: Something wrong with reading a chunk.");
+    }
+
+    // the bigram from the last line of one chunk to the first of the next,
+    // skipping chunks that are all inside one long line
+    String lastLineWord = null;
+    for (int i = 0; i < chunks.size(); i++) {
+      Chunk chunk = chunks.get(i);
+      if (i > 0 && chunks.get(i - 1).file != chunk.file) {
+        lastLineWord = null;
+      }
+      if (!chunk.hasLines) {
+        continue;
       }
+      if (lastLineWord != null && chunk.firstLineWord != null) {
+        counts.bigrams.add(counts.vocabulary.id(lastLineWord),
+            counts.vocabulary.id(chunk.firstLineWord), 1);
+      }
+      lastLineWord = chunk.lastLineWord;
     }
+    init = true;
   }
 
   /**
-   * Adds bigrams to the bigrams hashmap.
-   *
-   * @param currentLine
-   *          - an array of strings representing the current line of text.
-   * @param previousLineWord
-   *          - the last word of the previous line if any.
+   * Unigram and bigram counts, over ids of their own vocabulary, and the
+   * tokenizer lines are read with. The class library is one; each thread of
+   * a parallel read counts into another, added in at the end.
+   */
+  private static final class Counts {
+    private final Tokenizer tokens = new Tokenizer();
+    private final Vocabulary vocabulary;
+    // by id
+    private int[] unigrams;
+    private final BigramCounts bigrams;
+
+    Counts() {
+      this(new Vocabulary(), new int[64], new BigramCounts());
+    }
+
+    Counts(Vocabulary vocabulary, int[] unigrams, BigramCounts bigrams) {
+      this.vocabulary = vocabulary;
+      this.unigrams = unigrams;
+      this.bigrams = bigrams;
+    }
+
+    /**
+     * Adds to a word's count, adding the word first if it is new.
+     *
+     * @param word
+     *          - the word.
+     * @param n
+     *          - how much to add.
+     * @param trie
+     *          - trie to add new words to, or null.
+     * @return - the word's id.
+     */
+    int addWord(String word, int n, TrieNode trie) {
+      int size = vocabulary.size();
+      int id = vocabulary.add(word);
+      if (id == size) {
+        if (id == unigrams.length) {
+          unigrams = Arrays.copyOf(unigrams, id * 2);
+        }
+        if (trie != null) {
+          trie.insert(word);
+        }
+      }
+      unigrams[id] += n;
+      return id;
+    }
+
+    /**
+     * Counts the words of the line in tokens, and the bigrams between them
+     * and from the previous line's last word.
+     *
+     * @param previousLineWord
+     *          - id of the last word of the previous line, or NONE.
+     * @param trie
+     *          - trie to add new words to, or null.
+     * @return - id of the line's last word, or NONE if it has none.
+     */
+    int addLine(int previousLineWord, TrieNode trie) {
+      int word = previousLineWord;
+      for (int i = 0; i < tokens.count(); i++) {
+        int next = addWord(tokens.word(i), 1, trie);
+        if (word != NONE) {
+          bigrams.add(word, next, 1);
+        }
+        word = next;
+      }
+      return (tokens.count() == 0) ? NONE : word;
+    }
+
+    /**
+     * Adds another's counts into these, translating its ids to these ones.
+     *
+     * @param other
+     *          - the counts to add.
+     * @param trie
+     *          - trie to add new words to, or null.
+     */
+    void addAll(Counts other, TrieNode trie) {
+      int[] ids = new int[other.vocabulary.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = addWord(other.vocabulary.word(i), other.unigrams[i], trie);
+      }
+      bigrams.reserve(Math.max(bigrams.size(), other.bigrams.size()));
+      for (int slot = 0; slot < other.bigrams.capacity(); slot++) {
+        long key = other.bigrams.keyAt(slot);
+        if (key >= 0) {
+          bigrams.add(ids[BigramCounts.first(key)],
+              ids[BigramCounts.second(key)], other.bigrams.countAt(slot));
+        }
+      }
+    }
+  }
+
+  /**
+   * The lines of a file that start within the bytes [start, end).
    */
-  private void addBigrams(String[] currentLine, String previousLineWord) {
-    // dealing with case of combining with line before
-    if (previousLineWord != null) {
-      String toAdd = previousLineWord + " " + currentLine[0];
-      if (bigrams.containsKey(toAdd)) {
-        bigrams.put(toAdd, bigrams.get(toAdd) + 1);
-      } else {
-        bigrams.put(toAdd, 1);
+  private static final class Chunk {
+    private final File file;
+    private final long start;
+    private final long end;
+    // set once counted
+    private boolean hasLines = false;
+    // null if the line had no words
+    private String firstLineWord;
+    private String lastLineWord;
+
+    Chunk(File file, long start, long end) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+    }
+
+    /**
+     * Counts the chunk's lines as readCorpus would, but for the bigram
+     * joining its first line to the line before.
+     *
+     * @param counts
+     *          - where to count.
+     * @throws IOException
+     *           - if the file can't be read.
+     */
+    void count(Counts counts) throws IOException {
+      try (InputStream in = new FileInputStream(file)) {
+        // from the byte before, so a line running into the chunk is skipped
+        long position = Math.max(0, start - 1);
+        long skipped = 0;
+        while (skipped < position) {
+          long n = in.skip(position - skipped);
+          if (n <= 0) {
+            return;
+          }
+          skipped += n;
+        }
+        byte[] buffer = new byte[BUFFER_BYTES];
+        int length = 0;
+        int at = 0;
+        byte[] line = new byte[128];
+        int lineLength = 0;
+        // the line being read started before the chunk
+        boolean skipping = start > 0;
+        // the last byte ended a line with \r, which a \n after continues
+        boolean afterReturn = false;
+        long lineStart = position;
+        // id of the last word of the previous line, or NONE
+        int lastWord = NONE;
+        while (true) {
+          if (at == length) {
+            length = in.read(buffer);
+            at = 0;
+            if (length <= 0) {
+              break;
+            }
+          }
+          byte b = buffer[at++];
+          position++;
+          if (afterReturn && b == '\n') {
+            afterReturn = false;
+            lineStart = position;
+            if (lineStart >= end) {
+              break;
+            }
+            continue;
+          }
+          afterReturn = false;
+          // lines end like BufferedReader's: \n, \r or \r\n
+          if (b != '\n' && b != '\r') {
+            if (!skipping) {
+              if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+              }
+              line[lineLength++] = b;
+            }
+            continue;
+          }
+          if (!skipping) {
+            lastWord = countLine(counts, line, lineLength, lastWord);
+          }
+          skipping = false;
+          afterReturn = b == '\r';
+          lineLength = 0;
+          lineStart = position;
+          if (lineStart >= end) {
+            break;
+          }
+        }
+        if (!skipping && lineStart < end && lineLength > 0) {
+          // the file's last line, with no line break after it
+          lastWord = countLine(counts, line, lineLength, lastWord);
+        }
+        if (lastWord != NONE) {
+          lastLineWord = counts.vocabulary.word(lastWord);
+        }
       }
     }
 
-    // adding bigrams within this line
-    int i = 0;
-    while (i <= currentLine.length - 2) {
-      String toAdd2 = currentLine[i] + " " + currentLine[i + 1];
-      if (bigrams.containsKey(toAdd2)) {
-        bigrams.put(toAdd2, bigrams.get(toAdd2) + 1);
-      } else {
-        bigrams.put(toAdd2, 1);
+    private int countLine(Counts counts, byte[] line, int lineLength,
+        int lastWord) {
+      Tokenizer tokens = counts.tokens.reset(line, 0, lineLength);
+      if (!hasLines) {
+        hasLines = true;
+        firstLineWord = (tokens.count() != 0) ? tokens.word(0) : null;
       }
-      i++;
+      return counts.addLine(lastWord, null);
     }
   }
 
+  /**
+   * Adds tables read back from a file, such as a LanguageModelFile, to the
+   * class library; into an empty library they are simply taken over.
+   *
+   * @param vocabulary
+   *          - the words of the tables.
+   * @param unigrams
+   *          - unigram count of each word, by id.
+   * @param bigrams
+   *          - bigram counts.
+   * @param trie
+   *          - root of Trie where new words will be added. If null, doesn't.
+   */
+  void addTables(Vocabulary vocabulary, int[] unigrams, BigramCounts bigrams,
+      TrieNode trie) {
+    Counts read = new Counts(vocabulary, unigrams, bigrams);
+    if (counts.vocabulary.size() == 0) {
+      counts = read;
+      if (trie != null) {
+        for (int id = 0; id < vocabulary.size(); id++) {
+          trie.insert(vocabulary.word(id));
+        }
+      }
+    } else {
+      counts.addAll(read, trie);
+    }
+    init = true;
+  }
+
+  /**
+   * Getter method for the vocabulary, for writing the tables out.
+   *
+   * @return - the vocabulary.
+   */
+  Vocabulary getVocabulary() {
+    return counts.vocabulary;
+  }
+
+  /**
+   * Getter method for the unigram counts, for writing the tables out.
+   *
+   * @return - unigram count of each word by id; may be longer than the
+   *         vocabulary.
+   */
+  int[] getUnigramCounts() {
+    return counts.unigrams;
+  }
+
+  /**
+   * Getter method for the bigram counts, for writing the tables out.
+   *
+   * @return - the bigram counts.
+   */
+  BigramCounts getBigramCounts() {
+    return counts.bigrams;
+  }
+
+  /**
+   * Alternative method constructor for readCorpus. In this case, no trie is
+   * specified, and thus the read in doesn't add to trie.
+   *
+   * @param filepath
+   *          - a string to the file we wish to read in.
+   * @throws FileNotFoundException
+   *           - not found exception when can't read file.
+   * @throws IOException
+   *           - something was wrong with buffered reader.
+   */
+  public void readCorpus(String filepath)
+      throws FileNotFoundException, IOException {
+    readCorpus(filepath, null);
+  }
+
   /**
    * A getter method saying whether corpusreader has been initialized.
    *
@@ -207,26 +542,191 @@ public class CorpusReader {
    * @return - the value Integer to be returned.
    */
   public Integer getUnigramValue(String unigram) {
-    return unigrams.get(unigram);
+    int id = counts.vocabulary.id(unigram);
+    return (id == NONE) ? null : counts.unigrams[id];
   }
 
   /**
    * Getter method for accessing the bigram hashmap.
    *
    * @param bigram
-   *          - the key to be searched.
+   *          - the key to be searched, two words with a space between.
    * @return - the value Integer to be returned.
    */
   public Integer getBigramValue(String bigram) {
-    return bigrams.get(bigram);
+    int space = bigram.indexOf(' ');
+    if (space < 0) {
+      return null;
+    }
+    int first = counts.vocabulary.id(bigram, 0, space);
+    int second = counts.vocabulary.id(bigram, space + 1, bigram.length());
+    int count = getBigramCount(first, second);
+    return (count == 0) ? null : count;
+  }
+
+  /**
+   * Getter method for a word's id, for the getters by id.
+   *
+   * @param word
+   *          - the word.
+   * @return - its id, or -1 if it isn't in the library.
+   */
+  public int getWordId(String word) {
+    return counts.vocabulary.id(word);
+  }
+
+  /**
+   * Getter method for the id of a word given as part of a longer text.
+   *
+   * @param text
+   *          - the text holding the word.
+   * @param start
+   *          - where the word starts.
+   * @param end
+   *          - one past where it ends.
+   * @return - its id, or -1 if it isn't in the library.
+   */
+  public int getWordId(CharSequence text, int start, int end) {
+    return counts.vocabulary.id(text, start, end);
+  }
+
+  /**
+   * Getter method for the unigram count of a word by id.
+   *
+   * @param id
+   *          - the word's id, or -1.
+   * @return - the count, 0 for -1.
+   */
+  public int getUnigramCount(int id) {
+    return (id == NONE) ? 0 : counts.unigrams[id];
   }
 
   /**
-   * Getter method for the unigram dicitonary.
+   * Getter method for the bigram count of two words by id.
+   *
+   * @param first
+   *          - id of the first word, or -1.
+   * @param second
+   *          - id of the second word, or -1.
+   * @return - the count, 0 if the bigram hasn't been seen.
+   */
+  public int getBigramCount(int first, int second) {
+    if (first == NONE || second == NONE) {
+      return 0;
+    }
+    return counts.bigrams.get(first, second);
+  }
+
+  /**
+   * Getter method for the unigram dicitonary. It is a view of the counts:
+   * changing a count through it changes the count getUnigramValue gives.
    *
    * @return - the unigram dict.
    */
-  public HashMap<String, Integer> getDictionary() {
-    return this.unigrams;
+  public Map<String, Integer> getDictionary() {
+    return this.dictionary;
+  }
+
+  /**
+   * The unigram counts, as a map from words to counts. Words can be put in
+   * but not removed.
+   */
+  private final class Dictionary extends AbstractMap<String, Integer> {
+    @Override
+    public int size() {
+      return counts.vocabulary.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return (key instanceof String)
+          && counts.vocabulary.id((String) key) != NONE;
+    }
+
+    @Override
+    public Integer get(Object key) {
+      return (key instanceof String) ? getUnigramValue((String) key) : null;
+    }
+
+    @Override
+    public Integer put(String word, Integer count) {
+      Integer before = getUnigramValue(word);
+      int id = counts.addWord(word, 0, null);
+      counts.unigrams[id] = count;
+      return before;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+      return new AbstractSet<Map.Entry<String, Integer>>() {
+        @Override
+        public int size() {
+          return counts.vocabulary.size();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, Integer>> iterator() {
+          return new Iterator<Map.Entry<String, Integer>>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+              return next < counts.vocabulary.size();
+            }
+
+            @Override
+            public Map.Entry<String, Integer> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              return new WordEntry(next++);
+            }
+          };
+        }
+      };
+    }
+  }
+
+  /**
+   * A word and its count, reading and writing through to the count.
+   */
+  private final class WordEntry implements Map.Entry<String, Integer> {
+    private final int id;
+
+    WordEntry(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public String getKey() {
+      return counts.vocabulary.word(id);
+    }
+
+    @Override
+    public Integer getValue() {
+      return counts.unigrams[id];
+    }
+
+    @Override
+    public Integer setValue(Integer count) {
+      Integer before = counts.unigrams[id];
+      counts.unigrams[id] = count;
+      return before;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+      return getKey().equals(other.getKey())
+          && getValue().equals(other.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return getKey().hashCode() ^ getValue().hashCode();
+    }
   }
 }
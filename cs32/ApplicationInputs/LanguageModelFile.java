@@ -0,0 +1,556 @@
+package edu.brown.cs.mmines.ApplicationInputs;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+import edu.brown.cs.mmines.Trie.FlatTrie;
+import edu.brown.cs.mmines.Trie.TrieNode;
+
+/**
+ * Class for binary language model files: the tables of a CorpusReader (its
+ * vocabulary, unigram counts and bigram table) and optionally the trie of
+ * its words, completions included, written out as arrays. Loading one maps
+ * each array with FileChannel.map and copies it out in bulk, so a corpus
+ * that takes minutes to count loads in about the time it takes to read the
+ * file, with no tokenizing, hashing or inserting but for the vocabulary.
+ *
+ * A model can also serve as the snapshot of the corpus it was counted from:
+ * it then records the size and modification time the corpus had, and a tag
+ * for anything else the counts depend on, such as a database query, and is
+ * only fresh while they still match.
+ *
+ * Layout, little endian, every array starting on an 8 byte boundary:
+ *
+ * <pre>
+ * int magic, int version, int words, int bigram slots
+ * int trie nodes (0 if no trie), int trie completions, long word bytes
+ * long source size, long source mtime, long tag (all 0 if not a snapshot)
+ * int[words + 1]  where each word's bytes start, then where the last ends
+ * byte[]          the words, UTF-8, back to back
+ * int[words]      unigram count of each word, by id
+ * long[slots]     bigram table keys, slot by slot, -1 in empty slots
+ * int[slots]      bigram table counts
+ * int[nodes]      trie: per node in preorder, id of its word or -1
+ * char[nodes]     the letter leading to it
+ * int[nodes]      its number of children
+ * int[nodes + 1]  where its completions start
+ * int[completions] completions, as word ids
+ * </pre>
+ *
+ * The bigram table is kept as BigramCounts lays it out, so it isn't hashed
+ * again on loading; a change to its hashing needs a new version. Arrays are
+ * mapped a window at a time, as one mapping holds at most Integer.MAX_VALUE
+ * bytes, so a model holds a table as large as BigramCounts grows.
+ *
+ * A model is written to a new file that then replaces the old one, so an
+ * interrupted write leaves the old model, or none, and never half of one.
+ *
+ * @author maxmines
+ *
+ */
+public final class LanguageModelFile {
+  /**
+   * First four bytes of every model, "LMDL".
+   */
+  public static final int MAGIC = 0x4C4D444C;
+  /**
+   * Suffix of the snapshot kept next to a corpus file.
+   */
+  public static final String SNAPSHOT_SUFFIX = ".lm";
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 32;
+  private static final int SOURCE_BYTES = 24;
+  private static final int WRITE_BUFFER_BYTES = 1 << 16;
+  // the most bytes of an array mapped at once
+  private static final int WINDOW_BYTES = 1 << 30;
+
+  private LanguageModelFile() {
+  }
+
+  /**
+   * Checks whether a file starts with the model magic number.
+   *
+   * @param path
+   *          - the file to check.
+   * @return - true if the file looks like a model.
+   */
+  public static boolean isModel(String path) {
+    try (DataInputStream in = new DataInputStream(
+        new FileInputStream(path))) {
+      return Integer.reverseBytes(in.readInt()) == MAGIC;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether a file is a snapshot of a source that is still fresh: the
+   * source has the same size and modification time as when the snapshot was
+   * written, and the snapshot has the same tag.
+   *
+   * @param path
+   *          - the snapshot file.
+   * @param sourcePath
+   *          - the file it should be a snapshot of.
+   * @param tag
+   *          - what else the counts depend on, as given to write.
+   * @return - true if the snapshot can be used instead of the source.
+   */
+  public static boolean isFreshSnapshot(String path, String sourcePath,
+      long tag) {
+    File source = new File(sourcePath);
+    if (!source.isFile()) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new FileInputStream(path))) {
+      byte[] header = new byte[HEADER_BYTES + SOURCE_BYTES];
+      in.readFully(header);
+      ByteBuffer buffer = ByteBuffer.wrap(header)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        return false;
+      }
+      buffer.position(HEADER_BYTES);
+      long size = buffer.getLong();
+      long mtime = buffer.getLong();
+      return size == source.length() && mtime == source.lastModified()
+          && buffer.getLong() == tag;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes the tables of a corpus reader out as a model.
+   *
+   * @param cr
+   *          - the corpus reader.
+   * @param trie
+   *          - the trie of its words, with completions, or null to write
+   *          none.
+   * @param path
+   *          - the file to write to; replaced if it exists.
+   * @throws IOException
+   *           - if the file can't be written.
+   */
+  public static void write(CorpusReader cr, TrieNode trie, String path)
+      throws IOException {
+    write(cr, trie, path, 0, 0, 0);
+  }
+
+  /**
+   * Writes the tables of a corpus reader out as a snapshot of the source
+   * they were counted from. The size and modification time of the source
+   * should be taken before it is read, so a change made while reading it
+   * leaves the snapshot stale.
+   *
+   * @param cr
+   *          - the corpus reader.
+   * @param trie
+   *          - the trie of its words, with completions, or null to write
+   *          none.
+   * @param path
+   *          - the file to write to; replaced if it exists.
+   * @param sourceSize
+   *          - the size of the source file.
+   * @param sourceMtime
+   *          - the modification time of the source file.
+   * @param tag
+   *          - what else the counts depend on, 0 if nothing.
+   * @throws IOException
+   *           - if the file can't be written.
+   */
+  public static void write(CorpusReader cr, TrieNode trie, String path,
+      long sourceSize, long sourceMtime, long tag) throws IOException {
+    final Vocabulary vocabulary = cr.getVocabulary();
+    BigramCounts bigrams = cr.getBigramCounts();
+    int words = vocabulary.size();
+    int slots = bigrams.capacity();
+
+    int[] wordStarts = new int[words + 1];
+    byte[][] wordBytes = new byte[words][];
+    long totalBytes = 0;
+    for (int id = 0; id < words; id++) {
+      wordBytes[id] = vocabulary.word(id).getBytes(StandardCharsets.UTF_8);
+      wordStarts[id] = (int) totalBytes;
+      totalBytes += wordBytes[id].length;
+      if (totalBytes > Integer.MAX_VALUE) {
+        throw new IOException("too many words for one model");
+      }
+    }
+    wordStarts[words] = (int) totalBytes;
+
+    FlatTrie flat = null;
+    if (trie != null) {
+      flat = trie.flatten(new ToIntFunction<String>() {
+        @Override
+        public int applyAsInt(String word) {
+          return vocabulary.id(word);
+        }
+      });
+    }
+
+    // written beside the old file and moved over it, so a failed or
+    // killed write never leaves a partial model, fresh by its header
+    Path target = Paths.get(path).toAbsolutePath();
+    Path temp = Files.createFile(target.resolveSibling(target.getFileName()
+        + "." + Long.toHexString(System.nanoTime()) + ".tmp"));
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw");
+          FileChannel channel = raf.getChannel()) {
+        ColumnWriter out = new ColumnWriter(channel);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(words);
+        out.putInt(slots);
+        out.putInt((flat == null) ? 0 : flat.size());
+        out.putInt((flat == null) ? 0 : flat.getCompletions().length);
+        out.putLong(totalBytes);
+        out.putLong(sourceSize);
+        out.putLong(sourceMtime);
+        out.putLong(tag);
+
+        out.putInts(wordStarts, words + 1);
+        out.align();
+        for (byte[] bytes : wordBytes) {
+          out.putBytes(bytes);
+        }
+        out.align();
+        out.putInts(cr.getUnigramCounts(), words);
+        out.align();
+        for (int slot = 0; slot < slots; slot++) {
+          out.putLong(bigrams.keyAt(slot));
+        }
+        for (int slot = 0; slot < slots; slot++) {
+          out.putInt(bigrams.countAt(slot));
+        }
+        out.align();
+
+        if (flat != null) {
+          out.putInts(flat.getWords(), flat.size());
+          out.align();
+          out.putChars(flat.getLetters(), flat.size());
+          out.align();
+          out.putInts(flat.getChildCounts(), flat.size());
+          out.align();
+          out.putInts(flat.getCompletionStarts(), flat.size() + 1);
+          out.align();
+          out.putInts(flat.getCompletions(), flat.getCompletions().length);
+          out.align();
+        }
+        out.flush();
+      }
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Reads a model into a corpus reader, adding its words to a trie. When the
+   * reader is empty and the model holds a trie, the trie is read from the
+   * model instead, completions and all, and handed back in place of the one
+   * given.
+   *
+   * @param cr
+   *          - the corpus reader to add the model's tables to.
+   * @param path
+   *          - the model file.
+   * @param trie
+   *          - root of Trie to add the model's words to. If null, doesn't.
+   * @return - the trie now holding the words: the model's own if it was
+   *         read, whose completions are then up to date, otherwise trie.
+   * @throws IOException
+   *           - if the file can't be read or isn't a model.
+   */
+  public static TrieNode read(CorpusReader cr, String path, TrieNode trie)
+      throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(path, "r");
+        FileChannel channel = raf.getChannel()) {
+      ByteBuffer header = map(channel, 0, HEADER_BYTES);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("not a language model");
+      }
+      if (header.getInt() != VERSION) {
+        throw new IOException("unsupported language model version");
+      }
+      int words = header.getInt();
+      int slots = header.getInt();
+      int nodes = header.getInt();
+      int completions = header.getInt();
+      long totalBytes = header.getLong();
+      if (words < 0 || slots <= 0 || slots > BigramCounts.MAX_CAPACITY
+          || nodes < 0
+          || completions < 0 || totalBytes < 0
+          || totalBytes > Integer.MAX_VALUE) {
+        throw new IOException("language model is corrupt");
+      }
+      long offset = HEADER_BYTES + SOURCE_BYTES;
+
+      int[] wordStarts = new int[words + 1];
+      readInts(channel, offset, wordStarts, words + 1);
+      offset = align(offset + 4L * (words + 1));
+      byte[] wordBytes = new byte[(int) totalBytes];
+      map(channel, offset, totalBytes).get(wordBytes);
+      offset = align(offset + totalBytes);
+      final Vocabulary vocabulary = vocabulary(wordStarts, wordBytes);
+
+      // at least one, so that the unigrams can grow by doubling
+      int[] unigrams = new int[Math.max(words, 1)];
+      readInts(channel, offset, unigrams, words);
+      offset = align(offset + 4L * words);
+      long[] keys = new long[slots];
+      readLongs(channel, offset, keys);
+      offset += 8L * slots;
+      int[] bigramCounts = new int[slots];
+      readInts(channel, offset, bigramCounts, slots);
+      offset = align(offset + 4L * slots);
+      BigramCounts bigrams;
+      try {
+        bigrams = new BigramCounts(keys, bigramCounts);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("language model is corrupt");
+      }
+      for (long key : keys) {
+        if (key != -1 && (BigramCounts.first(key) >= words
+            || BigramCounts.second(key) >= words)) {
+          throw new IOException("language model is corrupt");
+        }
+      }
+
+      boolean takeTrie = trie != null && nodes > 0
+          && cr.getVocabulary().size() == 0;
+      if (!takeTrie) {
+        cr.addTables(vocabulary, unigrams, bigrams, trie);
+        return trie;
+      }
+
+      int[] nodeWords = new int[nodes];
+      readInts(channel, offset, nodeWords, nodes);
+      offset = align(offset + 4L * nodes);
+      char[] letters = new char[nodes];
+      readChars(channel, offset, letters);
+      offset = align(offset + 2L * nodes);
+      int[] childCounts = new int[nodes];
+      readInts(channel, offset, childCounts, nodes);
+      offset = align(offset + 4L * nodes);
+      int[] completionStarts = new int[nodes + 1];
+      readInts(channel, offset, completionStarts, nodes + 1);
+      offset = align(offset + 4L * (nodes + 1));
+      int[] completionIds = new int[completions];
+      readInts(channel, offset, completionIds, completions);
+
+      TrieNode read;
+      try {
+        read = TrieNode.unflatten(new FlatTrie(nodeWords, letters,
+            childCounts, completionStarts, completionIds),
+            new IntFunction<String>() {
+              @Override
+              public String apply(int id) {
+                return vocabulary.word(id);
+              }
+            });
+      } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+        throw new IOException("language model is corrupt");
+      }
+      cr.addTables(vocabulary, unigrams, bigrams, null);
+      return read;
+    }
+  }
+
+  /**
+   * Numbers the words of a model again, in the order they were written, so
+   * they get back the same ids.
+   *
+   * @param wordStarts
+   *          - where each word's bytes start, then where the last ends.
+   * @param wordBytes
+   *          - the words, UTF-8.
+   * @return - the vocabulary.
+   * @throws IOException
+   *           - if the words don't make a vocabulary.
+   */
+  private static Vocabulary vocabulary(int[] wordStarts, byte[] wordBytes)
+      throws IOException {
+    int words = wordStarts.length - 1;
+    Vocabulary vocabulary = new Vocabulary(words);
+    // corpus words are ASCII, a byte a char, so decode them all at once
+    String all = new String(wordBytes, StandardCharsets.UTF_8);
+    boolean ascii = all.length() == wordBytes.length;
+    for (int id = 0; id < words; id++) {
+      int start = wordStarts[id];
+      int end = wordStarts[id + 1];
+      if (start < 0 || end < start || end > wordBytes.length) {
+        throw new IOException("language model is corrupt");
+      }
+      String word = ascii ? all.substring(start, end)
+          : new String(wordBytes, start, end - start, StandardCharsets.UTF_8);
+      if (vocabulary.add(word) != id) {
+        throw new IOException("language model is corrupt");
+      }
+    }
+    return vocabulary;
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long length)
+      throws IOException {
+    if (offset + length > channel.size()) {
+      throw new IOException("language model is truncated");
+    }
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+        offset, length);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  /**
+   * Reads an array of ints out of a model, mapping a window at a time.
+   *
+   * @param channel
+   *          - the model file.
+   * @param offset
+   *          - where the array starts.
+   * @param values
+   *          - the array to read into.
+   * @param length
+   *          - the number of ints to read.
+   * @throws IOException
+   *           - if the file is too short.
+   */
+  private static void readInts(FileChannel channel, long offset,
+      int[] values, int length) throws IOException {
+    int done = 0;
+    while (done < length) {
+      int n = Math.min(WINDOW_BYTES / 4, length - done);
+      map(channel, offset + 4L * done, 4L * n).asIntBuffer()
+          .get(values, done, n);
+      done += n;
+    }
+  }
+
+  private static void readLongs(FileChannel channel, long offset,
+      long[] values) throws IOException {
+    int done = 0;
+    while (done < values.length) {
+      int n = Math.min(WINDOW_BYTES / 8, values.length - done);
+      map(channel, offset + 8L * done, 8L * n).asLongBuffer()
+          .get(values, done, n);
+      done += n;
+    }
+  }
+
+  private static void readChars(FileChannel channel, long offset,
+      char[] values) throws IOException {
+    int done = 0;
+    while (done < values.length) {
+      int n = Math.min(WINDOW_BYTES / 2, values.length - done);
+      map(channel, offset + 2L * done, 2L * n).asCharBuffer()
+          .get(values, done, n);
+      done += n;
+    }
+  }
+
+  private static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  /**
+   * Buffered little endian writer over a file channel that keeps track of its
+   * offset, so arrays can be aligned. Arrays are put in bulk, a buffer at a
+   * time.
+   */
+  private static final class ColumnWriter {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer
+        .allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private long offset = 0;
+
+    ColumnWriter(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    void putInt(int value) throws IOException {
+      ensure(4);
+      buffer.putInt(value);
+      offset += 4;
+    }
+
+    void putLong(long value) throws IOException {
+      ensure(8);
+      buffer.putLong(value);
+      offset += 8;
+    }
+
+    void putInts(int[] values, int length) throws IOException {
+      int done = 0;
+      while (done < length) {
+        ensure(4);
+        int n = Math.min(buffer.remaining() / 4, length - done);
+        buffer.asIntBuffer().put(values, done, n);
+        buffer.position(buffer.position() + 4 * n);
+        done += n;
+      }
+      offset += 4L * length;
+    }
+
+    void putChars(char[] values, int length) throws IOException {
+      int done = 0;
+      while (done < length) {
+        ensure(2);
+        int n = Math.min(buffer.remaining() / 2, length - done);
+        buffer.asCharBuffer().put(values, done, n);
+        buffer.position(buffer.position() + 2 * n);
+        done += n;
+      }
+      offset += 2L * length;
+    }
+
+    void putBytes(byte[] bytes) throws IOException {
+      int done = 0;
+      while (done < bytes.length) {
+        ensure(1);
+        int n = Math.min(buffer.remaining(), bytes.length - done);
+        buffer.put(bytes, done, n);
+        done += n;
+      }
+      offset += bytes.length;
+    }
+
+    void align() throws IOException {
+      while ((offset & 7) != 0) {
+        ensure(1);
+        buffer.put((byte) 0);
+        offset++;
+      }
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package edu.brown.cs.mmines.ApplicationInputs;
+
+import java.util.Arrays;
+
+/**
+ * Class for numbering words: each word added gets the next int id, from 0,
+ * so that tables about words can be arrays indexed by id. Ids are found
+ * through an open addressing table of ids, probed linearly on the words'
+ * String hash codes.
+ *
+ * @author maxmines
+ *
+ */
+public final class Vocabulary {
+  private static final int NONE = -1;
+
+  // by id
+  private String[] words;
+  // id of the word hashed to each slot, or NONE; at most half full
+  private int[] slots;
+  private int size = 0;
+
+  /**
+   * Constructor for Vocabulary.
+   */
+  public Vocabulary() {
+    this(64);
+  }
+
+  /**
+   * Constructor for Vocabulary with room for a number of words.
+   *
+   * @param expected
+   *          - how many words it will likely hold.
+   */
+  public Vocabulary(int expected) {
+    int capacity = 128;
+    while (capacity < expected * 2L) {
+      capacity *= 2;
+    }
+    words = new String[Math.max(expected, 1)];
+    slots = new int[capacity];
+    Arrays.fill(slots, NONE);
+  }
+
+  private static int spread(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Getter method for a word's id.
+   *
+   * @param word
+   *          - the word.
+   * @return - its id, or -1 if it hasn't been added.
+   */
+  public int id(String word) {
+    int mask = slots.length - 1;
+    for (int at = spread(word.hashCode()) & mask;; at = (at + 1) & mask) {
+      int id = slots[at];
+      if (id == NONE || words[id].equals(word)) {
+        return id;
+      }
+    }
+  }
+
+  /**
+   * Getter method for the id of a word given as part of a longer text, so
+   * that it needn't be cut out first.
+   *
+   * @param text
+   *          - the text holding the word.
+   * @param start
+   *          - where the word starts.
+   * @param end
+   *          - one past where it ends.
+   * @return - its id, or -1 if it hasn't been added.
+   */
+  public int id(CharSequence text, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + text.charAt(i);
+    }
+    int mask = slots.length - 1;
+    for (int at = spread(hash) & mask;; at = (at + 1) & mask) {
+      int id = slots[at];
+      if (id == NONE || matches(words[id], text, start, end)) {
+        return id;
+      }
+    }
+  }
+
+  private static boolean matches(String word, CharSequence text, int start,
+      int end) {
+    if (word.length() != end - start) {
+      return false;
+    }
+    for (int i = 0; i < word.length(); i++) {
+      if (word.charAt(i) != text.charAt(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds a word if it isn't in already.
+   *
+   * @param word
+   *          - the word.
+   * @return - its id; equal to size() - 1 if it is new.
+   */
+  public int add(String word) {
+    int mask = slots.length - 1;
+    int at = spread(word.hashCode()) & mask;
+    for (;; at = (at + 1) & mask) {
+      int id = slots[at];
+      if (id == NONE) {
+        break;
+      } else if (words[id].equals(word)) {
+        return id;
+      }
+    }
+    if (size == words.length) {
+      words = Arrays.copyOf(words, size * 2);
+    }
+    words[size] = word;
+    slots[at] = size;
+    size++;
+    if (size * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return size - 1;
+  }
+
+  private void rehash(int capacity) {
+    slots = new int[capacity];
+    Arrays.fill(slots, NONE);
+    int mask = capacity - 1;
+    for (int id = 0; id < size; id++) {
+      int at = spread(words[id].hashCode()) & mask;
+      while (slots[at] != NONE) {
+        at = (at + 1) & mask;
+      }
+      slots[at] = id;
+    }
+  }
+
+  /**
+   * Getter method for the word with an id.
+   *
+   * @param id
+   *          - the id, from 0 to size() - 1.
+   * @return - the word.
+   */
+  public String word(int id) {
+    if (id < 0 || id >= size) {
+      throw new IndexOutOfBoundsException("no word with id " + id);
+    }
+    return words[id];
+  }
+
+  /**
+   * Getter method for the number of words.
+   *
+   * @return - the number of words, one more than the largest id.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Bytes taken by the vocabulary's tables, not counting the words.
+   *
+   * @return - the size in bytes.
+   */
+  public long getMemoryBytes() {
+    return 4L * words.length + 4L * slots.length;
+  }
+}
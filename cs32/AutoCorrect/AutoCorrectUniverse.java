@@ -1,22 +1,31 @@
 package edu.brown.cs.mmines.AutoCorrect;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
 
 import edu.brown.cs.mmines.ApplicationInputs.CommandManager;
 import edu.brown.cs.mmines.ApplicationInputs.CorpusReader;
+import edu.brown.cs.mmines.ApplicationInputs.LanguageModelFile;
 import edu.brown.cs.mmines.ApplicationInputs.Universe;
+import edu.brown.cs.mmines.TextAnalysisUtilities.DeletionIndex;
+import edu.brown.cs.mmines.TextAnalysisUtilities.LevDistance;
+import edu.brown.cs.mmines.TextAnalysisUtilities.Tokenizer;
 import edu.brown.cs.mmines.TextAnalysisUtilities.WhiteSpace;
 import edu.brown.cs.mmines.Trie.TrieNode;
+import edu.brown.cs.mmines.Trie.WordAutomaton;
 
 /**
  * Class for the universe of AutoCorrect.
@@ -29,23 +38,45 @@ public class AutoCorrectUniverse implements Universe {
   private boolean prefix = false;
   private boolean smart = false;
   private int ledValue = 0;
+  // whether led candidates come from the deletion index instead of the trie
+  private boolean useDeletes = false;
+  // built on first use, rebuilt when led or the dictionary outgrows it
+  private DeletionIndex deletes = null;
+  // whether prefix and led words come from the automaton instead of the trie
+  private boolean useAutomaton = false;
+  // built on first use, rebuilt when the dictionary grows
+  private WordAutomaton automaton = null;
   private CorpusReader cr = new CorpusReader();
   private TrieNode root = new TrieNode(null);
   private HashSet<String> smartAugmented = new HashSet<String>();
+  // what smart has added to each word's count this session, which models
+  // are saved without
+  private final Map<String, Integer> smartBoosts =
+      new HashMap<String, Integer>();
 
   @Override
   public void installCommands(CommandManager cm) {
     cm.register("^smart(\\s(on|off))?$", new SmartCommand());
     cm.register("^whitespace(\\s(on|off))?$", new WhitespaceCommand());
     cm.register("^prefix(\\s(on|off))?$", new PrefixCommand());
-    cm.register("^corpus\\s([^\\s]+)$", new CorpusCommand());
+    cm.register("^corpus\\s([^\\s]+)(\\sparallel)?$", new CorpusCommand());
+    cm.register("^corpus-save\\s([^\\s]+)$", new SaveCorpusCommand());
     cm.register("^led(\\s[^\\s]+)?$", new LEDCommand());
     cm.register("^ac\\s.*$", new ACCommand());
+    cm.register("^dictionary(\\s(trie|dawg))?$", new DictionaryCommand());
+    cm.register("^led-index(\\s(trie|deletes))?$", new LEDIndexCommand());
+    cm.register("^led-bench\\s([^\\s]+)\\s([^\\s]+)$", new LEDBenchCommand());
 
   }
 
   /**
-   * Class for the CorpusCommand to load in new text bodies.
+   * Class for the CorpusCommand to load in new text bodies. With "parallel"
+   * at the end, or given a directory, the file or every file in the directory
+   * is read in chunks on several threads.
+   *
+   * A LanguageModelFile, such as one written by corpus-save, is loaded as
+   * is. The first corpus file loaded also gets a snapshot model next to it,
+   * which later loads of the same unchanged file take instead of reading it.
    *
    * @author maxmines
    *
@@ -54,21 +85,206 @@ public class AutoCorrectUniverse implements Universe {
     @Override
     public void execute(List<String> tokens, PrintWriter pw)
         throws IllegalArgumentException {
-      if ((tokens.get(0).equals("corpus")) && (tokens.size() == 2)) {
+      boolean parallel = tokens.size() == 3
+          && tokens.get(2).equals("parallel");
+      if ((tokens.get(0).equals("corpus"))
+          && (tokens.size() == 2 || parallel)) {
+        String path = tokens.get(1);
+        if (LanguageModelFile.isModel(path)) {
+          try {
+            loadModel(path);
+            pw.println("corpus " + path + " added");
+          } catch (IOException e) {
+            pw.println("ERROR: Unable to read model: " + e.getMessage());
+          }
+          return;
+        }
+        String snapshotPath = path + LanguageModelFile.SNAPSHOT_SUFFIX;
+        // snapshots only ever hold a single corpus
+        boolean first = cr.getDictionary().isEmpty();
         try {
-          cr.readCorpus(tokens.get(1), root);
-          pw.println("corpus " + tokens.get(1) + " added");
+          if (!(first
+              && LanguageModelFile.isFreshSnapshot(snapshotPath, path, 0)
+              && tryLoadModel(snapshotPath))) {
+            File source = new File(path);
+            long sourceSize = source.length();
+            long sourceMtime = source.lastModified();
+            // only the structure in use is kept up to date
+            TrieNode trie = useAutomaton ? null : root;
+            if (parallel || source.isDirectory()) {
+              cr.readCorpusParallel(path, trie);
+            } else {
+              cr.readCorpus(path, trie);
+            }
+            if (!useAutomaton) {
+              root.rebuildCompletions(cr.getDictionary());
+            }
+            if (first && source.isFile()) {
+              writeSnapshot(snapshotPath, sourceSize, sourceMtime, 0, pw);
+            }
+          }
+          pw.println("corpus " + path + " added");
         } catch (FileNotFoundException fnfe) {
           pw.println(fnfe.getMessage());
         } catch (IOException ioe) {
           pw.println(ioe.getMessage());
+        } catch (IllegalStateException ise) {
+          pw.println("ERROR: " + ise.getMessage());
         }
       } else {
-        pw.println("ERROR: corpus <filepath>");
+        pw.println("ERROR: corpus <filepath> [parallel]");
       }
     }
   }
 
+  /**
+   * Class for the corpus-save command, corpus-save path. Writes everything
+   * loaded so far out as one LanguageModelFile, which the corpus command
+   * loads back far faster than reading the corpora again.
+   *
+   * @author maxmines
+   *
+   */
+  public class SaveCorpusCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      try {
+        writeModel(tokens.get(1), 0, 0, 0);
+        pw.println("corpus saved to " + tokens.get(1));
+      } catch (IOException e) {
+        pw.println("ERROR: Unable to write model: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Loads a LanguageModelFile into the library, and its words into the
+   * structure in use. If the library was empty the trie is taken from the
+   * file, if it holds one, instead of being built.
+   *
+   * @param path
+   *          - the model file.
+   * @throws IOException
+   *           - if the file can't be read or isn't a model.
+   */
+  private void loadModel(String path) throws IOException {
+    TrieNode trie = useAutomaton ? null : root;
+    TrieNode loaded = LanguageModelFile.read(cr, path, trie);
+    if (loaded != trie) {
+      root = loaded;
+    } else if (!useAutomaton) {
+      root.rebuildCompletions(cr.getDictionary());
+    }
+  }
+
+  /**
+   * Loads a snapshot, if it can be read.
+   *
+   * @param snapshotPath
+   *          - the snapshot file.
+   * @return - true if it was loaded, false if the source must be read.
+   */
+  private boolean tryLoadModel(String snapshotPath) {
+    try {
+      loadModel(snapshotPath);
+      return true;
+    } catch (IOException e) {
+      // unreadable snapshot, read the source instead
+      return false;
+    }
+  }
+
+  /**
+   * Writes the library out as a LanguageModelFile, with the counts as the
+   * corpora have them: smart's boosts are taken out while it is written, and
+   * put back after.
+   *
+   * @param path
+   *          - the file to write.
+   * @param sourceSize
+   *          - the size of the source, or 0 if not a snapshot.
+   * @param sourceMtime
+   *          - the modification time of the source, or 0 if not a snapshot.
+   * @param tag
+   *          - what else the library depends on, 0 if nothing.
+   * @throws IOException
+   *           - if the file can't be written.
+   */
+  private void writeModel(String path, long sourceSize, long sourceMtime,
+      long tag) throws IOException {
+    shiftSmartBoosts(-1);
+    try {
+      LanguageModelFile.write(cr, useAutomaton ? null : root, path,
+          sourceSize, sourceMtime, tag);
+    } finally {
+      shiftSmartBoosts(1);
+    }
+  }
+
+  /**
+   * Adds smart's boosts to the counts, or takes them off, without changing
+   * what is recorded of them.
+   *
+   * @param sign
+   *          - 1 to add them, -1 to take them off.
+   */
+  private void shiftSmartBoosts(int sign) {
+    Map<String, Integer> unigramDict = cr.getDictionary();
+    for (Map.Entry<String, Integer> boost : smartBoosts.entrySet()) {
+      String word = boost.getKey();
+      unigramDict.put(word, unigramDict.get(word) + sign * boost.getValue());
+      root.updateCompletions(word, unigramDict);
+    }
+  }
+
+  /**
+   * Changes a word's count for smart, keeping track of the change.
+   *
+   * @param word
+   *          - a word in the dictionary.
+   * @param boost
+   *          - how much to add to its count, negative to take off.
+   */
+  private void boostSmart(String word, int boost) {
+    Map<String, Integer> unigramDict = cr.getDictionary();
+    unigramDict.put(word, unigramDict.get(word) + boost);
+    root.updateCompletions(word, unigramDict);
+    Integer before = smartBoosts.get(word);
+    int total = ((before == null) ? 0 : before) + boost;
+    if (total == 0) {
+      smartBoosts.remove(word);
+    } else {
+      smartBoosts.put(word, total);
+    }
+  }
+
+  /**
+   * Writes the library out as the snapshot of the one source it was read
+   * from. If it can't be, says so; the library is loaded either way.
+   *
+   * @param snapshotPath
+   *          - the file to write.
+   * @param sourceSize
+   *          - the size of the source, from before it was read.
+   * @param sourceMtime
+   *          - the modification time of the source, from before it was read.
+   * @param tag
+   *          - what else the library depends on, 0 if nothing.
+   * @param pw
+   *          - where to report a snapshot that can't be written.
+   */
+  private void writeSnapshot(String snapshotPath, long sourceSize,
+      long sourceMtime, long tag, PrintWriter pw) {
+    try {
+      writeModel(snapshotPath, sourceSize, sourceMtime, tag);
+    } catch (IOException e) {
+      // the old snapshot, if any, is left as it was, and being stale is
+      // never loaded; the next load just reads the source again
+      pw.println("ERROR: Unable to write snapshot " + snapshotPath + ": "
+          + e.getMessage());
+    }
+  }
+
   /**
    * Class for the PrefixCommand to toggle prefix.
    *
@@ -140,11 +356,10 @@ public class AutoCorrectUniverse implements Universe {
         } else if (tokens.get(1).equals("off")) {
           smart = false;
           if (cr.getInit()) {
-            HashMap<String, Integer> unigramDict = cr.getDictionary();
+            Map<String, Integer> unigramDict = cr.getDictionary();
             for (String s : smartAugmented) {
-              Integer value = unigramDict.get(s);
-              if (value != null) {
-                unigramDict.put(s, value - 3);
+              if (unigramDict.containsKey(s)) {
+                boostSmart(s, -3);
               }
             }
           }
@@ -179,6 +394,205 @@ public class AutoCorrectUniverse implements Universe {
     }
   }
 
+  /**
+   * Class for the led-index command, led-index [trie|deletes], which picks
+   * where led candidates come from: walking the trie, or looking up the
+   * deletion variants of the word in a DeletionIndex of the dictionary.
+   * Switching to deletes builds the index right away and reports its build
+   * time and size.
+   *
+   * @author maxmines
+   *
+   */
+  public class LEDIndexCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      if (tokens.size() == 1) {
+        pw.println("led-index " + (useDeletes ? "deletes" : "trie"));
+      } else if (tokens.get(1).equals("trie")) {
+        useDeletes = false;
+        // the index is only kept while it's in use
+        deletes = null;
+      } else {
+        useDeletes = true;
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        DeletionIndex built = deletionIndex(ledValue);
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.gc();
+        long usedAfter = runtime.totalMemory() - runtime.freeMemory();
+        pw.println("deletion index: " + built.getWordCount() + " words, "
+            + built.getVariantCount() + " variants up to led "
+            + built.getMaxDistance() + ", built in " + millis + " ms, about "
+            + Math.max(0, usedAfter - usedBefore) / (1024 * 1024) + " MB");
+      }
+    }
+  }
+
+  /**
+   * The deletion index of the current dictionary, built again if the led
+   * asked for goes past what it was built for or words have been added
+   * since.
+   *
+   * @param led
+   *          - the largest led it needs to answer.
+   * @return - the index.
+   */
+  private DeletionIndex deletionIndex(int led) {
+    Map<String, Integer> dictionary = cr.getDictionary();
+    if (deletes == null || deletes.getMaxDistance() < led
+        || deletes.getWordCount() != dictionary.size()) {
+      deletes = null;
+      DeletionIndex built = new DeletionIndex(led);
+      for (String word : dictionary.keySet()) {
+        built.add(word);
+      }
+      deletes = built;
+    }
+    return deletes;
+  }
+
+  /**
+   * Class for the dictionary command, dictionary [trie|dawg], which picks
+   * what prefix and led suggestions walk: the trie, or a WordAutomaton of the
+   * dictionary, which merges shared word endings and so takes far less
+   * memory. Switching to dawg builds it right away, reports its size and
+   * lets the trie go; switching back rebuilds the trie from the dictionary.
+   * With led-index deletes, led suggestions still come from that.
+   *
+   * @author maxmines
+   *
+   */
+  public class DictionaryCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      if (tokens.size() == 1) {
+        pw.println("dictionary " + (useAutomaton ? "dawg" : "trie"));
+      } else if (tokens.get(1).equals("trie")) {
+        if (useAutomaton) {
+          useAutomaton = false;
+          automaton = null;
+          root = new TrieNode(null);
+          for (String word : cr.getDictionary().keySet()) {
+            root.insert(word);
+          }
+          root.rebuildCompletions(cr.getDictionary());
+        }
+      } else {
+        useAutomaton = true;
+        long start = System.nanoTime();
+        WordAutomaton built = automaton();
+        root = new TrieNode(null);
+        long millis = (System.nanoTime() - start) / 1000000;
+        pw.println("dawg: " + built.size() + " words, "
+            + built.getStateCount() + " states, "
+            + built.getTransitionCount() + " transitions, built in " + millis
+            + " ms, " + built.getMemoryBytes() / 1024 + " KB");
+      }
+    }
+  }
+
+  /**
+   * The automaton of the current dictionary, built again if words have been
+   * added since.
+   *
+   * @return - the automaton.
+   */
+  private WordAutomaton automaton() {
+    Map<String, Integer> dictionary = cr.getDictionary();
+    if (automaton == null || automaton.size() != dictionary.size()) {
+      automaton = null;
+      automaton = new WordAutomaton(dictionary);
+    }
+    return automaton;
+  }
+
+  /**
+   * Class for the led-bench command, led-bench queries led. Times finding
+   * every dictionary word within led of misspelled dictionary words four
+   * ways: scanning the dictionary with the full distance, scanning it with
+   * the distance bounded by led, walking the trie (or the automaton, with
+   * dictionary dawg), and looking up the deletion index (which is built
+   * first if needed). Each is run once untimed first to warm up.
+   *
+   * @author maxmines
+   *
+   */
+  public class LEDBenchCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      if (!cr.getInit()) {
+        pw.println("ERROR: load a corpus first.");
+        return;
+      }
+      int queries;
+      int led;
+      try {
+        queries = Integer.parseInt(tokens.get(1));
+        led = Integer.parseInt(tokens.get(2));
+      } catch (NumberFormatException e) {
+        pw.println("ERROR: led-bench <queries> <led>");
+        return;
+      }
+      if (queries < 1 || led < 0) {
+        pw.println("ERROR: queries must be positive and led non-negative.");
+        return;
+      }
+      List<String> words = new ArrayList<String>(cr.getDictionary().keySet());
+      Collections.sort(words);
+      Random random = new Random(queries);
+      List<String> targets = new ArrayList<String>(queries);
+      for (int i = 0; i < queries; i++) {
+        // one substitution, so there is something to correct
+        char[] word = words.get(random.nextInt(words.size())).toCharArray();
+        word[random.nextInt(word.length)] = (char) ('a' + random.nextInt(26));
+        targets.add(new String(word));
+      }
+
+      pw.println("method\tms/query\tmatches/query");
+      DeletionIndex index = deletionIndex(led);
+      for (String method : new String[] {"scan", "scan-bounded",
+          useAutomaton ? "dawg" : "trie", "deletes"}) {
+        benchLED(method, targets, words, index, led);
+        long start = System.nanoTime();
+        long found = benchLED(method, targets, words, index, led);
+        long nanos = System.nanoTime() - start;
+        pw.println(String.format("%s\t%.3f\t%.1f", method,
+            nanos / 1e6 / queries, (double) found / queries));
+      }
+      if (!useDeletes) {
+        deletes = null;
+      }
+    }
+
+    private long benchLED(String method, List<String> targets,
+        List<String> words, DeletionIndex index, int led) {
+      long found = 0;
+      for (String target : targets) {
+        if (method.equals("scan")) {
+          for (String word : words) {
+            if (LevDistance.getLevDist(target, word) <= led) {
+              found++;
+            }
+          }
+        } else if (method.equals("scan-bounded")) {
+          found += LevDistance.withinDistance(target, words, led,
+              new ArrayList<String>()).size();
+        } else if (method.equals("trie")) {
+          found += root.lev(target, led, new ArrayList<String>()).size();
+        } else if (method.equals("dawg")) {
+          found += automaton().lev(target, led, new ArrayList<String>())
+              .size();
+        } else {
+          found += index.lookup(target, led, new ArrayList<String>()).size();
+        }
+      }
+      return found;
+    }
+  }
+
   /**
    * Class for the AC command.
    *
@@ -240,15 +654,11 @@ public class AutoCorrectUniverse implements Universe {
    *
    * @param input
    *          - a string to clean up
-   * @return - the string, cleaned and chopped on " "
+   * @return - the words of the string, lower case, chopped the same way as
+   *         corpora are.
    */
   public static String[] cleanUpAC(String input) {
-    input = input.replaceAll("[^a-zA-Z]", " ");
-    input = input.replaceAll("\\s{2,}", " ");
-    input = input.replaceAll("\\s$", "");
-    input = input.replaceAll("^\\s", "");
-    input = input.toLowerCase();
-    return input.split(" ");
+    return Tokenizer.split(input);
   }
 
   /**
@@ -266,15 +676,30 @@ public class AutoCorrectUniverse implements Universe {
     // prefix value
     if (this.prefix) {
       List<String> prefixResults = new LinkedList<String>();
-      TrieNode lookedUp = root.findNode(word);
-      if (lookedUp != null) {
-        toReturn.addAll(lookedUp.returnWordChildren(prefixResults));
+      if (this.useAutomaton) {
+        toReturn.addAll(automaton().wordsWithPrefix(word, prefixResults));
+      } else {
+        TrieNode lookedUp = root.findNode(word);
+        if (lookedUp != null && wordBefore == null) {
+          // ranked on unigrams alone, only the node's most frequent words
+          // can make the cut; the word itself is found by led in any case
+          Collections.addAll(toReturn, lookedUp.getCompletions());
+        } else if (lookedUp != null) {
+          toReturn.addAll(lookedUp.returnWordChildren(prefixResults));
+        }
       }
     }
 
     // led
     List<String> ledResults = new LinkedList<String>();
-    toReturn.addAll(root.lev(word, this.ledValue, 0, ledResults));
+    if (this.useDeletes) {
+      toReturn.addAll(deletionIndex(this.ledValue).lookup(word, this.ledValue,
+          ledResults));
+    } else if (this.useAutomaton) {
+      toReturn.addAll(automaton().lev(word, this.ledValue, ledResults));
+    } else {
+      toReturn.addAll(root.lev(word, this.ledValue, ledResults));
+    }
 
     // whitespace
     if (this.whitespace) {
@@ -283,20 +708,15 @@ public class AutoCorrectUniverse implements Universe {
 
     PriorityQueue<Rankable> sortedToReturn = new PriorityQueue<Rankable>(
         Collections.reverseOrder());
-    if (wordBefore == null) {
-      for (String s : toReturn) {
-        sortedToReturn.add(new Rankable(s, false, word));
-      }
-    } else {
-      for (String s : toReturn) {
-        sortedToReturn.add(new Rankable(wordBefore + " " + s, true, word));
-      }
+    int wordBeforeId = (wordBefore == null) ? -1 : cr.getWordId(wordBefore);
+    for (String s : toReturn) {
+      sortedToReturn.add(new Rankable(s, wordBefore, wordBeforeId, word));
     }
 
     List<String> toReturnRanked = new LinkedList<String>();
     int i = 0;
     while (i < 5 && (!sortedToReturn.isEmpty())) {
-      toReturnRanked.add(sortedToReturn.poll().suggestion);
+      toReturnRanked.add(sortedToReturn.poll().getSug());
       i++;
     }
     return toReturnRanked;
@@ -304,55 +724,40 @@ public class AutoCorrectUniverse implements Universe {
   }
 
   /**
-   * Rankable class for ranking results for autocorrect.
+   * Rankable class for ranking results for autocorrect. Scores are looked up
+   * by word id, so ranking makes no Strings; the suggestion with the word
+   * before in front is only made for those returned.
    *
    * @author maxmines
    *
    */
   public class Rankable implements Comparable<Rankable> {
-    private String suggestion;
+    // the word suggested, or two split by whitespace
+    private String candidate;
+    private String wordBefore;
     private int score = 0;
     private int tieScore = 0;
 
-    Rankable(String suggestion, boolean wordBefore, String wordToCorrect) {
-      String[] chopped = suggestion.split(" ");
-      this.suggestion = suggestion;
-
-      // unigram
-      if (!wordBefore) {
-        // check to see if exact match
-        if (chopped[0].equals(wordToCorrect)) {
-          score = Integer.MAX_VALUE;
-        } else {
-          if (chopped.length == 2) {
-            // case where whitespace has found two, compare on first.
-            score = cr.getUnigramValue(chopped[0]);
-            tieScore = 0;
-          } else {
-            score = cr.getUnigramValue(suggestion);
-            tieScore = 0;
-          }
-        }
+    Rankable(String candidate, String wordBefore, int wordBeforeId,
+        String wordToCorrect) {
+      this.candidate = candidate;
+      this.wordBefore = wordBefore;
+      // case where whitespace has found two, compare on first.
+      int space = candidate.indexOf(' ');
+      int end = (space < 0) ? candidate.length() : space;
+      int firstId = (space < 0) ? cr.getWordId(candidate)
+          : cr.getWordId(candidate, 0, end);
+
+      // check to see if exact match
+      if (end == wordToCorrect.length()
+          && candidate.startsWith(wordToCorrect)) {
+        score = Integer.MAX_VALUE;
+        tieScore = (wordBefore == null) ? 0 : Integer.MAX_VALUE;
+      } else if (wordBefore == null) { // unigram
+        score = cr.getUnigramCount(firstId);
       } else { // bigram
-        if (chopped[1].equals(wordToCorrect)) {
-          score = Integer.MAX_VALUE;
-          tieScore = Integer.MAX_VALUE;
-        } else {
-          if (chopped.length == 2) {
-            Integer toBeScore = cr.getBigramValue(suggestion);
-            if (toBeScore != null) {
-              score = toBeScore;
-            }
-            tieScore = cr.getUnigramValue(chopped[1]);
-          } else {
-            Integer toBeScore = cr
-                .getBigramValue(chopped[0] + " " + chopped[1]);
-            if (toBeScore != null) {
-              score = toBeScore;
-            }
-            tieScore = cr.getUnigramValue(chopped[1]);
-          }
-        }
+        score = cr.getBigramCount(wordBeforeId, firstId);
+        tieScore = cr.getUnigramCount(firstId);
       }
     }
 
@@ -366,16 +771,8 @@ public class AutoCorrectUniverse implements Universe {
         if (secondComparison != 0) {
           return secondComparison;
         } else {
-          PriorityQueue<String> pqCompare = new PriorityQueue<String>();
-          pqCompare.add(this.suggestion);
-          pqCompare.add(r.getSug());
-          String ahead = pqCompare.poll();
-          if (this.suggestion.equals(ahead)) {
-            return 1;
-          } else {
-            return -1;
-          }
-
+          // alphabetically first ranks higher; the word before is the same
+          return (this.candidate.compareTo(r.candidate) <= 0) ? 1 : -1;
         }
       }
     }
@@ -395,7 +792,10 @@ public class AutoCorrectUniverse implements Universe {
      * @return - this.suggestion.
      */
     public String getSug() {
-      return this.suggestion;
+      if (wordBefore == null) {
+        return this.candidate;
+      }
+      return wordBefore + " " + this.candidate;
     }
 
   }
@@ -421,18 +821,14 @@ public class AutoCorrectUniverse implements Universe {
     for (String s : previousWords) {
       if (fromGui) {
         if (!this.smartAugmented.contains(s)) {
-          HashMap<String, Integer> unigramDict = cr.getDictionary();
-          Integer value = unigramDict.get(s);
-          if (value != null) {
-            unigramDict.put(s, value + 3);
+          if (cr.getDictionary().containsKey(s)) {
+            boostSmart(s, 3);
             this.smartAugmented.add(s);
           }
         }
       } else {
-        HashMap<String, Integer> unigramDict = cr.getDictionary();
-        Integer value = unigramDict.get(s);
-        if (value != null) {
-          unigramDict.put(s, value + 3);
+        if (cr.getDictionary().containsKey(s)) {
+          boostSmart(s, 3);
         }
       }
 
@@ -451,7 +847,9 @@ public class AutoCorrectUniverse implements Universe {
     // cleaning up what we got back
     String[] cleaned = cleanUpAC(txtResp);
     if (cr.getInit()) {
-      if (cleaned.length == 1) {
+      if (cleaned.length == 0) {
+        return new LinkedList<String>();
+      } else if (cleaned.length == 1) {
         return generateResponse(cleaned[0], null);
       } else {
         int numWordsNotAnalyzed = cleaned.length - 2;
@@ -502,20 +900,42 @@ public class AutoCorrectUniverse implements Universe {
   }
 
   /**
-   * Allows setup of a database as query, not through commandManager.
+   * Allows setup of a database as query, not through commandManager. The
+   * first database loaded gets a snapshot model next to it, tagged with the
+   * query, which later loads with the same query take while the database is
+   * unchanged.
    *
    * @param db
    *          - path to .sqlite3 database
    * @param query
    *          - the string, a SQL query, that returns desired entries in column
    *          1 as strings.
+   * @param pw
+   *          - where to report a snapshot that can't be written.
    * @throws SQLException
    *           - db input or query input was problematic for SQL connection.
    * @throws ClassNotFoundException
    *           - something is wrong with SQL connection.
    */
-  public void databaseCorpus(String db, String query)
+  public void databaseCorpus(String db, String query, PrintWriter pw)
       throws ClassNotFoundException, SQLException {
-    cr.readDatabase(db, query, root);
+    String snapshotPath = db + LanguageModelFile.SNAPSHOT_SUFFIX;
+    boolean first = cr.getDictionary().isEmpty();
+    if (first && LanguageModelFile.isFreshSnapshot(snapshotPath, db,
+        query.hashCode()) && tryLoadModel(snapshotPath)) {
+      return;
+    }
+    File source = new File(db);
+    boolean existed = source.isFile();
+    long sourceSize = source.length();
+    long sourceMtime = source.lastModified();
+    cr.readDatabase(db, query, useAutomaton ? null : root);
+    if (!useAutomaton) {
+      root.rebuildCompletions(cr.getDictionary());
+    }
+    if (first && existed) {
+      writeSnapshot(snapshotPath, sourceSize, sourceMtime, query.hashCode(),
+          pw);
+    }
   }
 }
@@ -49,7 +49,7 @@ public class BaconUniverse implements Universe {
         bp = new BaconProxy(tokens.get(1));
         ac = new AutoCorrectUniverse();
         ac.turnMeOn(true, 1, true, false);
-        ac.databaseCorpus(tokens.get(1), "SELECT name FROM actor");
+        ac.databaseCorpus(tokens.get(1), "SELECT name FROM actor", pw);
         pw.println("db set to " + tokens.get(1));
       } catch (SQLException sql) {
         sql.printStackTrace();
@@ -305,6 +305,11 @@ public final class Main {
       PrintWriter pw = new PrintWriter(sw);
       cm.process(txtResp, pw);
       String resultFromHandler = sw.toString();
+      if (resultFromHandler.startsWith("Loading")) {
+        // stars loads in the background, report how it went instead
+        starsUni.awaitLoads();
+        resultFromHandler = withoutProgress(sw.toString());
+      }
       Map<String, Object> variables = null;
       System.out.println(resultFromHandler);
 
@@ -318,6 +323,24 @@ public final class Main {
       }
       return new ModelAndView(variables, "results.ftl");
     }
+
+    /**
+     * Drops the progress lines a load prints, "Loading ...", leaving its
+     * outcome.
+     *
+     * @param output
+     *          - what a command printed.
+     * @return - the output without progress lines.
+     */
+    private static String withoutProgress(String output) {
+      StringBuilder sb = new StringBuilder();
+      for (String line : output.split("\\R")) {
+        if (!line.startsWith("Loading")) {
+          sb.append(line).append(System.lineSeparator());
+        }
+      }
+      return sb.toString();
+    }
   }
 
   /**
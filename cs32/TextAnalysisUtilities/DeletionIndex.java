@@ -0,0 +1,188 @@
+package edu.brown.cs.mmines.TextAnalysisUtilities;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class for finding dictionary words within a small lev distance of a word
+ * without walking the dictionary (symmetric delete). Every word is indexed
+ * under each string it becomes with up to maxDistance characters deleted. Two
+ * words within distance d of each other always share such a string, reached
+ * with at most d deletions from each, so the words near a query are among
+ * those indexed under the query's own deletions: a few hash lookups, after
+ * which each candidate is checked with the bounded distance.
+ *
+ * @author maxmines
+ *
+ */
+public final class DeletionIndex {
+  private final int maxDistance;
+  // deletion variant to the word it comes from, or a String[] of the words
+  // when there are several; most variants come from just one, and saving
+  // the array for those takes a good part off the index's size
+  private final HashMap<String, Object> variants =
+      new HashMap<String, Object>();
+  private int words = 0;
+
+  /**
+   * Constructor for DeletionIndex.
+   *
+   * @param maxDistance
+   *          - the largest lev distance it will be asked for.
+   */
+  public DeletionIndex(int maxDistance) {
+    if (maxDistance < 0) {
+      throw new IllegalArgumentException("max distance must be non-negative");
+    }
+    this.maxDistance = maxDistance;
+  }
+
+  /**
+   * Indexes a word. Each word should be added once.
+   *
+   * @param word
+   *          - the word to add.
+   */
+  public void add(String word) {
+    addDeletions(word, word, 0, maxDistance);
+    words++;
+  }
+
+  /**
+   * Indexes a word under a variant of it, and under every variant with up
+   * to n more characters deleted from start on. Deleting left to right only
+   * reaches each set of deleted positions once; different sets can still
+   * give the same string, but then the word was the last one added under
+   * it, which is checked for.
+   *
+   * @param variant
+   *          - the variant.
+   * @param word
+   *          - the word it came from.
+   * @param start
+   *          - the first position that may be deleted.
+   * @param n
+   *          - the most further deletions.
+   */
+  private void addDeletions(String variant, String word, int start, int n) {
+    Object sources = variants.get(variant);
+    if (sources == null) {
+      variants.put(variant, word);
+    } else if (sources instanceof String) {
+      if (sources != word) {
+        variants.put(variant, new String[] {(String) sources, word});
+      }
+    } else {
+      String[] several = (String[]) sources;
+      if (several[several.length - 1] != word) {
+        String[] grown = Arrays.copyOf(several, several.length + 1);
+        grown[several.length] = word;
+        variants.put(variant, grown);
+      }
+    }
+    if (n > 0) {
+      for (int i = start; i < variant.length(); i++) {
+        addDeletions(variant.substring(0, i) + variant.substring(i + 1),
+            word, i, n - 1);
+      }
+    }
+  }
+
+  /**
+   * Finds every indexed word within a lev distance of a given word.
+   *
+   * @param word
+   *          - the word to evaluate lev distances against.
+   * @param led
+   *          - the maximum distance allowed, at most maxDistance.
+   * @param list
+   *          - the place to add new findings.
+   * @return - the list containing the results.
+   */
+  public List<String> lookup(String word, int led, List<String> list) {
+    if (led > maxDistance) {
+      throw new IllegalArgumentException(
+          "index only goes up to distance " + maxDistance);
+    }
+    Set<String> checked = new HashSet<String>();
+    for (String variant : deletions(word, led)) {
+      Object sources = variants.get(variant);
+      if (sources instanceof String) {
+        check(word, (String) sources, led, checked, list);
+      } else if (sources != null) {
+        for (String candidate : (String[]) sources) {
+          check(word, candidate, led, checked, list);
+        }
+      }
+    }
+    return list;
+  }
+
+  private static void check(String word, String candidate, int led,
+      Set<String> checked, List<String> list) {
+    if (checked.add(candidate)
+        && LevDistance.getLevDist(word, candidate, led) <= led) {
+      list.add(candidate);
+    }
+  }
+
+  /**
+   * The word itself and every string it becomes with at most n characters
+   * deleted.
+   *
+   * @param word
+   *          - the word.
+   * @param n
+   *          - the most deletions.
+   * @return - the variants, without repeats.
+   */
+  private static Set<String> deletions(String word, int n) {
+    Set<String> toReturn = new HashSet<String>();
+    toReturn.add(word);
+    Set<String> last = toReturn;
+    for (int round = 0; round < n; round++) {
+      Set<String> next = new HashSet<String>();
+      for (String s : last) {
+        for (int i = 0; i < s.length(); i++) {
+          String deleted = s.substring(0, i) + s.substring(i + 1);
+          if (!toReturn.contains(deleted)) {
+            next.add(deleted);
+          }
+        }
+      }
+      toReturn.addAll(next);
+      last = next;
+    }
+    return toReturn;
+  }
+
+  /**
+   * Getter method for the largest distance the index answers.
+   *
+   * @return - the max distance.
+   */
+  public int getMaxDistance() {
+    return this.maxDistance;
+  }
+
+  /**
+   * Getter method for the number of words indexed.
+   *
+   * @return - the number of words.
+   */
+  public int getWordCount() {
+    return this.words;
+  }
+
+  /**
+   * Getter method for the number of distinct deletion variants indexed.
+   *
+   * @return - the number of variants.
+   */
+  public int getVariantCount() {
+    return this.variants.size();
+  }
+}
@@ -1,12 +1,35 @@
 package edu.brown.cs.mmines.TextAnalysisUtilities;
 
+import java.util.List;
+
 /**
  * Class for computing levenshtein distance between two words.
  *
+ * When the shorter word is at most 64 characters, which is nearly always, the
+ * distance is computed with Myers' bit-parallel algorithm: a column of the
+ * distance table is kept as two 64 bit masks of where it goes up and down by
+ * one, and a whole column is advanced with a handful of word operations.
+ * Longer words fall back to the table, kept as two rows. Either way, with a
+ * maximum distance given, the computation stops as soon as the distance can
+ * no longer be within it, and the table only fills the diagonal band it can
+ * be in.
+ *
  * @author maxmines
  *
  */
 public final class LevDistance {
+  // longest word the bit-parallel computation takes, bits in a long
+  private static final int WORD_BITS = 64;
+  // characters with a match mask table entry; others are masked on the fly
+  private static final int TABLE_CHARS = 256;
+  // per thread match masks, all zero between calls
+  private static final ThreadLocal<long[]> MASKS = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[TABLE_CHARS];
+    }
+  };
+
   private LevDistance() {
     // private constructor.
   }
@@ -21,30 +44,187 @@ public final class LevDistance {
    * @return - an integer representing the LED between two inputs.
    */
   public static int getLevDist(String word1, String word2) {
-    char[] w1 = word1.toCharArray();
-    char[] w2 = word2.toCharArray();
+    // no two words are further apart than the longer one is long
+    return getLevDist(word1, word2, Math.max(word1.length(), word2.length()));
+  }
 
-    int[][] table = new int[w1.length + 1][w2.length + 1];
+  /**
+   * Given two words, returns the LED between the two if it is at most max.
+   *
+   * @param word1
+   *          - first word.
+   * @param word2
+   *          - second word.
+   * @param max
+   *          - the largest distance the caller cares about, non-negative.
+   * @return - the LED between the two inputs if it is at most max, otherwise
+   *         max + 1.
+   */
+  public static int getLevDist(String word1, String word2, int max) {
+    if (max < 0) {
+      throw new IllegalArgumentException("max must be non-negative");
+    }
+    if (Math.abs(word1.length() - word2.length()) > max) {
+      return max + 1;
+    }
+    String shorter = word1;
+    String longer = word2;
+    if (shorter.length() > longer.length()) {
+      shorter = word2;
+      longer = word1;
+    }
+    if (shorter.isEmpty()) {
+      return longer.length();
+    }
+    if (shorter.length() <= WORD_BITS) {
+      return bitParallel(shorter, longer, max);
+    }
+    return banded(shorter, longer, max);
+  }
 
-    // making edge values compared to blank string
-    for (int i = 0; i <= w1.length; i++) {
-      table[i][0] = i;
+  /**
+   * Every word within a distance of a word, by checking each in turn.
+   *
+   * @param word
+   *          - the word.
+   * @param words
+   *          - the words to check, a whole dictionary say.
+   * @param max
+   *          - the maximum distance allowed.
+   * @param list
+   *          - the place to add the words found.
+   * @return - the list containing the results.
+   */
+  public static List<String> withinDistance(String word,
+      Iterable<String> words, int max, List<String> list) {
+    for (String candidate : words) {
+      if (getLevDist(word, candidate, max) <= max) {
+        list.add(candidate);
+      }
     }
-    for (int j = 0; j <= w2.length; j++) {
-      table[0][j] = j;
+    return list;
+  }
+
+  /**
+   * Myers' algorithm, as formulated by Hyyro for the distance between whole
+   * words. The pattern runs down the table and the text across it; bit i of
+   * the masks is about row i + 1 of the current column.
+   *
+   * @param pattern
+   *          - the shorter word, 1 to 64 characters.
+   * @param text
+   *          - the longer word.
+   * @param max
+   *          - the maximum distance of interest.
+   * @return - the distance if at most max, otherwise max + 1.
+   */
+  private static int bitParallel(String pattern, String text, int max) {
+    int m = pattern.length();
+    int n = text.length();
+    long[] masks = MASKS.get();
+    for (int i = 0; i < m; i++) {
+      char c = pattern.charAt(i);
+      if (c < TABLE_CHARS) {
+        masks[c] |= 1L << i;
+      }
+    }
+    long last = 1L << (m - 1);
+    // vertical deltas of the column: all +1 in the first
+    long up = -1L;
+    long down = 0;
+    int score = m;
+    int toReturn = -1;
+    for (int j = 0; j < n; j++) {
+      char c = text.charAt(j);
+      long eq = (c < TABLE_CHARS) ? masks[c] : matchMask(pattern, c);
+      long xv = eq | down;
+      long xh = (((eq & up) + up) ^ up) | eq;
+      long hUp = down | ~(xh | up);
+      long hDown = up & xh;
+      if ((hUp & last) != 0) {
+        score++;
+      } else if ((hDown & last) != 0) {
+        score--;
+      }
+      // the bottom row can come down by at most one per character left
+      if (score - (n - j - 1) > max) {
+        toReturn = max + 1;
+        break;
+      }
+      // the top row, the empty pattern, goes up by one every column
+      hUp = (hUp << 1) | 1L;
+      hDown <<= 1;
+      up = hDown | ~(xv | hUp);
+      down = hUp & xv;
+    }
+    for (int i = 0; i < m; i++) {
+      char c = pattern.charAt(i);
+      if (c < TABLE_CHARS) {
+        masks[c] = 0;
+      }
     }
+    if (toReturn < 0) {
+      toReturn = Math.min(score, max + 1);
+    }
+    return toReturn;
+  }
 
-    // filling in table
-    for (int i = 1; i <= w1.length; i++) {
-      for (int j = 1; j <= w2.length; j++) {
-        int cost = 1;
-        if (w1[i - 1] == w2[j - 1]) {
-          cost = 0;
+  private static long matchMask(String pattern, char c) {
+    long eq = 0;
+    for (int i = 0; i < pattern.length(); i++) {
+      if (pattern.charAt(i) == c) {
+        eq |= 1L << i;
+      }
+    }
+    return eq;
+  }
+
+  /**
+   * The distance table two rows at a time, filling only the cells within max
+   * of the diagonal, since any other cell is more than max already.
+   *
+   * @param word1
+   *          - the shorter word.
+   * @param word2
+   *          - the longer word.
+   * @param max
+   *          - the maximum distance of interest.
+   * @return - the distance if at most max, otherwise max + 1.
+   */
+  private static int banded(String word1, String word2, int max) {
+    int n = word2.length();
+    int outside = max + 1;
+    int[] previous = new int[n + 1];
+    int[] current = new int[n + 1];
+    for (int j = 0; j <= n; j++) {
+      previous[j] = (j <= max) ? j : outside;
+    }
+    for (int i = 1; i <= word1.length(); i++) {
+      int lo = Math.max(1, i - max);
+      int hi = Math.min(n, i + max);
+      current[lo - 1] = (lo == 1) ? Math.min(i, outside) : outside;
+      int min = current[lo - 1];
+      char c = word1.charAt(i - 1);
+      for (int j = lo; j <= hi; j++) {
+        int cost = (c == word2.charAt(j - 1)) ? 0 : 1;
+        int value = Math.min(previous[j - 1] + cost,
+            Math.min(previous[j], current[j - 1]) + 1);
+        current[j] = Math.min(value, outside);
+        if (value < min) {
+          min = value;
         }
-        table[i][j] = Math.min(table[i - 1][j] + 1,
-            Math.min(table[i][j - 1] + 1, (table[i - 1][j - 1] + cost)));
       }
+      if (hi < n) {
+        // the cell past the band, read by the next row
+        current[hi + 1] = outside;
+      }
+      if (min > max) {
+        return outside;
+      }
+      int[] tmp = previous;
+      previous = current;
+      current = tmp;
     }
-    return table[w1.length][w2.length];
+    return previous[n];
   }
 }
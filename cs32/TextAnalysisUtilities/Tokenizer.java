@@ -0,0 +1,182 @@
+package edu.brown.cs.mmines.TextAnalysisUtilities;
+
+import java.util.Arrays;
+
+/**
+ * Class for chopping text into words: the runs of letters a to z, either
+ * case, lower cased. Everything else separates words.
+ *
+ * It takes one pass over the text, folding case as it goes, and records each
+ * word as a range of its own lower cased copy of the letters. A word is only
+ * made a String when asked for, and then comes from a small cache of the
+ * Strings made last, so the common words of a corpus are each made once and
+ * the same String is handed out every time after. Such a String also keeps
+ * its hash code, so looking it up again in a HashMap doesn't rehash it.
+ *
+ * A Tokenizer is reused line after line, and is not thread safe: give each
+ * thread its own.
+ *
+ * @author maxmines
+ *
+ */
+public final class Tokenizer {
+  // slots in the String cache, a power of two
+  private static final int POOL_SIZE = 1 << 12;
+
+  // the letters of the current text, lower cased, words back to back
+  private char[] letters = new char[256];
+  // word i is letters [starts[i], starts[i + 1]), hashed like String does
+  private int[] starts = new int[33];
+  private int[] hashes = new int[32];
+  private int count = 0;
+  private final String[] pool;
+
+  /**
+   * Constructor for Tokenizer.
+   */
+  public Tokenizer() {
+    this(POOL_SIZE);
+  }
+
+  private Tokenizer(int poolSize) {
+    this.pool = new String[poolSize];
+  }
+
+  /**
+   * Chops a text into words.
+   *
+   * @param text
+   *          - the text.
+   * @return - this tokenizer, holding the text's words.
+   */
+  public Tokenizer reset(CharSequence text) {
+    count = 0;
+    int length = 0;
+    int hash = 0;
+    boolean inWord = false;
+    for (int i = 0; i < text.length(); i++) {
+      // only sets bit 5, so only A to Z land on a to z
+      char c = (char) (text.charAt(i) | 0x20);
+      if (c >= 'a' && c <= 'z') {
+        if (length == letters.length) {
+          letters = Arrays.copyOf(letters, length * 2);
+        }
+        letters[length++] = c;
+        hash = 31 * hash + c;
+        inWord = true;
+      } else if (inWord) {
+        endWord(length, hash);
+        hash = 0;
+        inWord = false;
+      }
+    }
+    if (inWord) {
+      endWord(length, hash);
+    }
+    return this;
+  }
+
+  /**
+   * Chops text given as bytes into words, taking each byte as a character.
+   * That is right for any encoding in which bytes under 128 are ASCII, UTF-8
+   * included, since no other byte is a letter.
+   *
+   * @param bytes
+   *          - holds the text.
+   * @param offset
+   *          - where the text starts.
+   * @param length
+   *          - how many bytes it is.
+   * @return - this tokenizer, holding the text's words.
+   */
+  public Tokenizer reset(byte[] bytes, int offset, int length) {
+    count = 0;
+    int size = 0;
+    int hash = 0;
+    boolean inWord = false;
+    for (int i = offset; i < offset + length; i++) {
+      char c = (char) ((bytes[i] & 0xFF) | 0x20);
+      if (c >= 'a' && c <= 'z') {
+        if (size == letters.length) {
+          letters = Arrays.copyOf(letters, size * 2);
+        }
+        letters[size++] = c;
+        hash = 31 * hash + c;
+        inWord = true;
+      } else if (inWord) {
+        endWord(size, hash);
+        hash = 0;
+        inWord = false;
+      }
+    }
+    if (inWord) {
+      endWord(size, hash);
+    }
+    return this;
+  }
+
+  private void endWord(int end, int hash) {
+    if (count == hashes.length) {
+      hashes = Arrays.copyOf(hashes, count * 2);
+      starts = Arrays.copyOf(starts, count * 2 + 1);
+    }
+    hashes[count] = hash;
+    starts[++count] = end;
+  }
+
+  /**
+   * Getter method for the number of words.
+   *
+   * @return - the number of words in the text.
+   */
+  public int count() {
+    return this.count;
+  }
+
+  /**
+   * Getter method for a word, as a String from the cache if it holds it.
+   *
+   * @param i
+   *          - which word, from 0.
+   * @return - the word, lower case.
+   */
+  public String word(int i) {
+    int start = starts[i];
+    int length = starts[i + 1] - start;
+    int hash = hashes[i];
+    int slot = (hash ^ (hash >>> 16)) & (POOL_SIZE - 1);
+    String cached = pool[slot];
+    if (cached != null && cached.hashCode() == hash
+        && cached.length() == length) {
+      boolean same = true;
+      for (int j = 0; j < length && same; j++) {
+        same = cached.charAt(j) == letters[start + j];
+      }
+      if (same) {
+        return cached;
+      }
+    }
+    String word = new String(letters, start, length);
+    pool[slot] = word;
+    return word;
+  }
+
+  /**
+   * Chops a text into words, with a tokenizer of its own, for one-off texts
+   * like a query: the cache would be no use.
+   *
+   * @param text
+   *          - the text.
+   * @return - its words, lower case.
+   */
+  public static String[] split(CharSequence text) {
+    Tokenizer tokens = new Tokenizer(0).reset(text);
+    String[] toReturn = new String[tokens.count];
+    for (int i = 0; i < tokens.count; i++) {
+      int start = tokens.starts[i];
+      toReturn[i] = new String(tokens.letters, start,
+          tokens.starts[i + 1] - start);
+    }
+    return toReturn;
+  }
+}
@@ -1,6 +1,6 @@
 package edu.brown.cs.mmines.TextAnalysisUtilities;
 
-import java.util.HashMap;
+import java.util.Map;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -26,7 +26,7 @@ public final class WhiteSpace {
    * @return - a list of all the bigrams found within.
    */
   public static List<String> whitespace(String word,
-      HashMap<String, ?> dictionary) {
+      Map<String, ?> dictionary) {
     List<String> toReturn = new LinkedList<String>();
     for (int i = 0; i < word.length(); i++) {
       String word1 = word.substring(0, i);
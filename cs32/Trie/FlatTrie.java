@@ -0,0 +1,114 @@
+package edu.brown.cs.mmines.Trie;
+
+/**
+ * Class for a trie laid out in arrays, for writing it to a file and reading
+ * it back without inserting every word again. Nodes are numbered in
+ * preorder, the root 0, so a node's children follow it, each after the whole
+ * subtree of the one before. Words are given by id, in some numbering of the
+ * trie's words kept alongside, such as a corpus' vocabulary.
+ *
+ * Completions are kept only for nodes that have their own: a wordless node
+ * with a single child shares its child's, and is given none here.
+ *
+ * @author maxmines
+ *
+ */
+public final class FlatTrie {
+  // per node: id of its word or -1, the letter leading to it (0 for the
+  // root), and its number of children
+  final int[] words;
+  final char[] letters;
+  final int[] childCounts;
+  // node i's completions are completions [completionStarts[i],
+  // completionStarts[i + 1])
+  final int[] completionStarts;
+  final int[] completions;
+
+  /**
+   * Constructor for FlatTrie, from arrays as the getters describe them.
+   *
+   * @param words
+   *          - per node, id of its word or -1.
+   * @param letters
+   *          - per node, the letter leading to it.
+   * @param childCounts
+   *          - per node, its number of children.
+   * @param completionStarts
+   *          - per node, where its completions start, and one more entry for
+   *          where the last node's end.
+   * @param completions
+   *          - ids of the completions of all nodes, node after node.
+   */
+  public FlatTrie(int[] words, char[] letters, int[] childCounts,
+      int[] completionStarts, int[] completions) {
+    int nodes = words.length;
+    if (nodes == 0 || letters.length != nodes || childCounts.length != nodes
+        || completionStarts.length != nodes + 1) {
+      throw new IllegalArgumentException("trie arrays don't agree");
+    }
+    this.words = words;
+    this.letters = letters;
+    this.childCounts = childCounts;
+    this.completionStarts = completionStarts;
+    this.completions = completions;
+  }
+
+  /**
+   * Getter method for the number of nodes.
+   *
+   * @return - the number of nodes.
+   */
+  public int size() {
+    return this.words.length;
+  }
+
+  /**
+   * Getter method for the word ids of the nodes. The array must not be
+   * changed.
+   *
+   * @return - per node, id of its word or -1.
+   */
+  public int[] getWords() {
+    return this.words;
+  }
+
+  /**
+   * Getter method for the letters leading to the nodes. The array must not
+   * be changed.
+   *
+   * @return - per node, the letter leading to it, 0 for the root.
+   */
+  public char[] getLetters() {
+    return this.letters;
+  }
+
+  /**
+   * Getter method for the numbers of children. The array must not be
+   * changed.
+   *
+   * @return - per node, its number of children.
+   */
+  public int[] getChildCounts() {
+    return this.childCounts;
+  }
+
+  /**
+   * Getter method for where each node's completions start. The array must
+   * not be changed.
+   *
+   * @return - per node, where its completions start, then where the last
+   *         node's end.
+   */
+  public int[] getCompletionStarts() {
+    return this.completionStarts;
+  }
+
+  /**
+   * Getter method for the completions. The array must not be changed.
+   *
+   * @return - word ids of the completions of all nodes, node after node.
+   */
+  public int[] getCompletions() {
+    return this.completions;
+  }
+}
@@ -1,20 +1,44 @@
 package edu.brown.cs.mmines.Trie;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-
-import edu.brown.cs.mmines.TextAnalysisUtilities.LevDistance;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
 
 /**
  * Class for Tries/trie nodes. To create a new trie, create a new TrieNode, then
  * insert words to it.
  *
+ * A node keeps its children in two parallel arrays, the letters sorted and
+ * the nodes in the same order, found by binary search. Most nodes have one
+ * child or none, so this costs a fraction of a map per node, with no boxed
+ * letters, and leaves share the same empty arrays.
+ *
+ * Each node can also carry the COMPLETIONS most frequent words below it, so
+ * the best completions of a prefix are read off its node instead of
+ * gathering every word below it. They are computed from the children's, so
+ * a wordless node with a single child shares its child's.
+ *
  * @author maxmines
  *
  */
 public class TrieNode {
+  /**
+   * How many completions each node keeps, as many as autocorrect suggests.
+   */
+  public static final int COMPLETIONS = 5;
+  private static final char[] NO_LETTERS = new char[0];
+  private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+  private static final String[] NO_WORDS = new String[0];
+
   private String word;
-  private HashMap<Character, TrieNode> children = new HashMap<Character, TrieNode>();
+  // sorted, letters[i] leads to children[i]
+  private char[] letters = NO_LETTERS;
+  private TrieNode[] children = NO_CHILDREN;
+  // most frequent first, ties alphabetical
+  private String[] completions = NO_WORDS;
 
   /**
    * Constructor for TrieNode.
@@ -34,36 +58,42 @@ public class TrieNode {
    *          - word to insert.
    */
   public void insert(String wordToInsert) {
-    insertHelper(wordToInsert, wordToInsert);
+    TrieNode node = this;
+    for (int i = 0; i < wordToInsert.length(); i++) {
+      char letter = wordToInsert.charAt(i);
+      int at = Arrays.binarySearch(node.letters, letter);
+      if (at < 0) {
+        node = node.addChild(-(at + 1), letter);
+      } else {
+        node = node.children[at];
+      }
+    }
+    node.word = wordToInsert;
   }
 
   /**
-   * Inserts a new word below the current node. To start, this should be called
-   * on root.
+   * Adds a new, empty child.
    *
-   * @param wordToPlace
-   *          - the word to be placed.
-   * @param rest
-   *          - used for recursion. For outside users, this should be the same
-   *          as the full word to be placed.
+   * @param at
+   *          - where its letter goes in the sorted letters.
+   * @param letter
+   *          - the letter leading to it.
+   * @return - the new child.
    */
-  private void insertHelper(String wordToPlace, String rest) {
-    TrieNode nextNode = this.children.get(rest.charAt(0));
-    if (nextNode == null) {
-      if (rest.length() == 1) {
-        this.children.put(rest.charAt(0), new TrieNode(wordToPlace));
-      } else {
-        TrieNode nodeToPlace = new TrieNode(null);
-        this.children.put(rest.charAt(0), nodeToPlace);
-        nodeToPlace.insertHelper(wordToPlace, rest.substring(1));
-      }
-    } else {
-      if (rest.length() == 1) {
-        nextNode.word = wordToPlace;
-      } else {
-        nextNode.insertHelper(wordToPlace, rest.substring(1));
-      }
-    }
+  private TrieNode addChild(int at, char letter) {
+    int n = letters.length;
+    char[] newLetters = new char[n + 1];
+    TrieNode[] newChildren = new TrieNode[n + 1];
+    System.arraycopy(letters, 0, newLetters, 0, at);
+    System.arraycopy(children, 0, newChildren, 0, at);
+    System.arraycopy(letters, at, newLetters, at + 1, n - at);
+    System.arraycopy(children, at, newChildren, at + 1, n - at);
+    TrieNode child = new TrieNode(null);
+    newLetters[at] = letter;
+    newChildren[at] = child;
+    this.letters = newLetters;
+    this.children = newChildren;
+    return child;
   }
 
   /**
@@ -77,7 +107,7 @@ public class TrieNode {
     if (this.word != null) {
       toReturn.add(this.word);
     }
-    for (TrieNode tn : this.children.values()) {
+    for (TrieNode tn : this.children) {
       tn.returnWordChildren(toReturn);
     }
     return toReturn;
@@ -87,22 +117,241 @@ public class TrieNode {
    * Finds the node corresponding to a given word for.
    *
    * @param rest
-   *          - on the recursive call, this is the rest of the word. First call
-   *          this is full word.
+   *          - the word, or start of a word, to find below this node.
    * @return returns the node if the word (or word so far) was found in the
    *         tree, otherwise null.
    */
   public TrieNode findNode(String rest) {
-    if (rest.length() == 0) {
-      return this;
-    } else {
-      TrieNode nextNode = this.children.get(rest.charAt(0));
-      if (nextNode == null) {
+    TrieNode node = this;
+    for (int i = 0; i < rest.length(); i++) {
+      int at = Arrays.binarySearch(node.letters, rest.charAt(i));
+      if (at < 0) {
         return null;
-      } else {
-        return nextNode.findNode(rest.substring(1));
       }
+      node = node.children[at];
     }
+    return node;
+  }
+
+  /**
+   * Getter method for the most frequent words below this node, this node's
+   * own word included, as of the last time they were computed.
+   *
+   * @return - up to COMPLETIONS words, most frequent first, ties in
+   *         alphabetical order. The array must not be changed.
+   */
+  public String[] getCompletions() {
+    return this.completions;
+  }
+
+  /**
+   * Computes the completions of every node below this one, after many
+   * frequencies have changed at once, such as after reading a corpus. Should
+   * be called on the root.
+   *
+   * @param frequencies
+   *          - the frequency of every word in the trie.
+   */
+  public void rebuildCompletions(Map<String, Integer> frequencies) {
+    for (TrieNode child : this.children) {
+      child.rebuildCompletions(frequencies);
+    }
+    this.completions = mergeCompletions(frequencies);
+  }
+
+  /**
+   * Computes the completions again along the path of one word, after its
+   * frequency has changed. Should be called on the root.
+   *
+   * @param changed
+   *          - the word whose frequency changed.
+   * @param frequencies
+   *          - the frequency of every word in the trie.
+   */
+  public void updateCompletions(String changed,
+      Map<String, Integer> frequencies) {
+    TrieNode[] path = new TrieNode[changed.length() + 1];
+    path[0] = this;
+    for (int i = 0; i < changed.length(); i++) {
+      int at = Arrays.binarySearch(path[i].letters, changed.charAt(i));
+      if (at < 0) {
+        return;
+      }
+      path[i + 1] = path[i].children[at];
+    }
+    for (int i = path.length - 1; i >= 0; i--) {
+      path[i].completions = path[i].mergeCompletions(frequencies);
+    }
+  }
+
+  /**
+   * The completions of this node from its own word and its children's
+   * completions, which are up to date.
+   *
+   * @param frequencies
+   *          - the frequency of every word in the trie.
+   * @return - the completions.
+   */
+  private String[] mergeCompletions(Map<String, Integer> frequencies) {
+    if (this.word == null && this.children.length == 1) {
+      return this.children[0].completions;
+    }
+    String[] best = new String[COMPLETIONS];
+    int[] counts = new int[COMPLETIONS];
+    int size = 0;
+    if (this.word != null) {
+      best[0] = this.word;
+      counts[0] = frequency(frequencies, this.word);
+      size = 1;
+    }
+    for (TrieNode child : this.children) {
+      for (String candidate : child.completions) {
+        int count = frequency(frequencies, candidate);
+        if (size == COMPLETIONS && !ahead(count, candidate,
+            counts[size - 1], best[size - 1])) {
+          // the child's are in order, so none of the rest are ahead either
+          break;
+        }
+        int i = (size == COMPLETIONS) ? size - 1 : size++;
+        while (i > 0 && ahead(count, candidate, counts[i - 1], best[i - 1])) {
+          best[i] = best[i - 1];
+          counts[i] = counts[i - 1];
+          i--;
+        }
+        best[i] = candidate;
+        counts[i] = count;
+      }
+    }
+    return (size == COMPLETIONS) ? best : Arrays.copyOf(best, size);
+  }
+
+  private static int frequency(Map<String, Integer> frequencies, String w) {
+    Integer count = frequencies.get(w);
+    return (count == null) ? 0 : count;
+  }
+
+  private static boolean ahead(int count, String w, int otherCount,
+      String other) {
+    return count > otherCount
+        || (count == otherCount && w.compareTo(other) < 0);
+  }
+
+  /**
+   * Lays the trie out in arrays, for writing it out. Should be called on the
+   * root.
+   *
+   * @param ids
+   *          - gives the id of each word in the trie, or a negative number
+   *          if it has none.
+   * @return - the trie in arrays.
+   */
+  public FlatTrie flatten(ToIntFunction<String> ids) {
+    // nodes, then completions kept
+    int[] sizes = new int[2];
+    count(sizes);
+    FlatTrie flat = new FlatTrie(new int[sizes[0]], new char[sizes[0]],
+        new int[sizes[0]], new int[sizes[0] + 1], new int[sizes[1]]);
+    fill(flat, ids, (char) 0, new int[2]);
+    return flat;
+  }
+
+  private boolean sharesCompletions() {
+    return this.word == null && this.children.length == 1;
+  }
+
+  private void count(int[] sizes) {
+    sizes[0]++;
+    if (!sharesCompletions()) {
+      sizes[1] += this.completions.length;
+    }
+    for (TrieNode child : this.children) {
+      child.count(sizes);
+    }
+  }
+
+  private void fill(FlatTrie flat, ToIntFunction<String> ids, char letter,
+      int[] next) {
+    int node = next[0]++;
+    flat.words[node] = (this.word == null) ? -1 : id(ids, this.word);
+    flat.letters[node] = letter;
+    flat.childCounts[node] = this.children.length;
+    flat.completionStarts[node] = next[1];
+    if (!sharesCompletions()) {
+      for (String completion : this.completions) {
+        flat.completions[next[1]++] = id(ids, completion);
+      }
+    }
+    flat.completionStarts[node + 1] = next[1];
+    for (int i = 0; i < this.children.length; i++) {
+      this.children[i].fill(flat, ids, this.letters[i], next);
+    }
+  }
+
+  private static int id(ToIntFunction<String> ids, String w) {
+    int id = ids.applyAsInt(w);
+    if (id < 0) {
+      throw new IllegalArgumentException("no id for trie word " + w);
+    }
+    return id;
+  }
+
+  /**
+   * Builds a trie back from its arrays, completions included.
+   *
+   * @param flat
+   *          - the trie in arrays.
+   * @param words
+   *          - gives the word with each id.
+   * @return - the root of the trie.
+   */
+  public static TrieNode unflatten(FlatTrie flat, IntFunction<String> words) {
+    int size = flat.size();
+    TrieNode[] nodes = new TrieNode[size];
+    // nodes still taking children, and how many each has so far
+    int[] open = new int[size];
+    int[] filled = new int[size];
+    int top = -1;
+    for (int i = 0; i < size; i++) {
+      int id = flat.words[i];
+      TrieNode node = new TrieNode((id < 0) ? null : words.apply(id));
+      int childCount = flat.childCounts[i];
+      if (childCount > 0) {
+        node.letters = new char[childCount];
+        node.children = new TrieNode[childCount];
+      }
+      nodes[i] = node;
+      if (top >= 0) {
+        TrieNode parent = nodes[open[top]];
+        parent.letters[filled[top]] = flat.letters[i];
+        parent.children[filled[top]] = node;
+        if (++filled[top] == parent.children.length) {
+          top--;
+        }
+      } else if (i > 0) {
+        throw new IllegalArgumentException("trie arrays aren't one tree");
+      }
+      if (childCount > 0) {
+        open[++top] = i;
+        filled[top] = 0;
+      }
+    }
+    if (top >= 0) {
+      throw new IllegalArgumentException("trie arrays end too soon");
+    }
+    // children come after their parents, so backwards they're done first
+    for (int i = size - 1; i >= 0; i--) {
+      TrieNode node = nodes[i];
+      if (node.sharesCompletions()) {
+        node.completions = node.children[0].completions;
+      } else if (flat.completionStarts[i + 1] > flat.completionStarts[i]) {
+        int start = flat.completionStarts[i];
+        node.completions = new String[flat.completionStarts[i + 1] - start];
+        for (int j = 0; j < node.completions.length; j++) {
+          node.completions[j] = words.apply(flat.completions[start + j]);
+        }
+      }
+    }
+    return nodes[0];
   }
 
   /**
@@ -115,35 +364,115 @@ public class TrieNode {
   }
 
   /**
-   * Method for computing lev distance between a given word using the Trie as
-   * the dictionary of words. For the initial call, this method should be called
-   * on the root of the tree with a depth of 0
+   * Method for finding every word of the Trie within a given lev distance of
+   * a word. Should be called on the root.
+   *
+   * Words below a node all start with the prefix the node spells, so instead
+   * of computing each word's distance from scratch this keeps one row of the
+   * distance table per level of the walk: the distances from the node's
+   * prefix to every prefix of wordComp, each row computed from its parent's.
+   * The last entry of a row is the node's own distance, and the smallest
+   * entry is a lower bound on the distance of every word below it, so a
+   * subtree is left as soon as that exceeds led.
    *
    * @param wordComp
    *          - the word to evaluate lev distances against.
    * @param led
    *          - the maximum distance allowed.
-   * @param depth
-   *          - the current depth in the tree. At root, depth = 0.
    * @param list
    *          - the place to add new findings.
    * @return - the list containing the results.
    */
-  public List<String> lev(String wordComp, int led, int depth,
-      List<String> list) {
-    if (wordComp.length() + led < depth) {
-      return list;
-    } else {
-      if (this.word != null) {
-        int currentLed = LevDistance.getLevDist(wordComp, this.word);
-        if (currentLed <= led) {
-          list.add(this.word);
+  public List<String> lev(String wordComp, int led, List<String> list) {
+    LevSearch search = new LevSearch(wordComp.toCharArray(), led, list);
+    int[] first = search.row(0);
+    for (int i = 0; i < first.length; i++) {
+      first[i] = i;
+    }
+    if (this.word != null && first[first.length - 1] <= led) {
+      list.add(this.word);
+    }
+    search.children(this, 0);
+    return list;
+  }
+
+  /**
+   * The state of one lev search: the word searched for, and the rows of the
+   * distance table along the current path, reused between siblings.
+   */
+  private static final class LevSearch {
+    private final char[] target;
+    private final int led;
+    private final List<String> list;
+    private final List<int[]> rows = new ArrayList<>();
+
+    LevSearch(char[] target, int led, List<String> list) {
+      this.target = target;
+      this.led = led;
+      this.list = list;
+    }
+
+    /**
+     * The row for a depth of the walk, allocated the first time the walk
+     * gets that deep.
+     *
+     * @param depth
+     *          - the depth.
+     * @return - the row.
+     */
+    int[] row(int depth) {
+      while (rows.size() <= depth) {
+        rows.add(new int[target.length + 1]);
+      }
+      return rows.get(depth);
+    }
+
+    /**
+     * Visits every child of a node whose row is already filled in.
+     *
+     * @param node
+     *          - the node.
+     * @param depth
+     *          - its depth, the index of its row.
+     */
+    void children(TrieNode node, int depth) {
+      for (int i = 0; i < node.children.length; i++) {
+        visit(node.children[i], node.letters[i], depth + 1);
+      }
+    }
+
+    /**
+     * Fills in the row of a node from its parent's, reports its word if it
+     * is close enough, and goes on into its children unless none of them
+     * can be.
+     *
+     * @param node
+     *          - the node.
+     * @param letter
+     *          - the letter on the edge into it.
+     * @param depth
+     *          - its depth.
+     */
+    private void visit(TrieNode node, char letter, int depth) {
+      int[] previous = rows.get(depth - 1);
+      int[] current = row(depth);
+      current[0] = depth;
+      int min = depth;
+      for (int i = 1; i < current.length; i++) {
+        int cost = (target[i - 1] == letter) ? 0 : 1;
+        int value = Math.min(previous[i - 1] + cost,
+            Math.min(previous[i], current[i - 1]) + 1);
+        current[i] = value;
+        if (value < min) {
+          min = value;
         }
       }
-      for (TrieNode tn : this.children.values()) {
-        tn.lev(wordComp, led, depth + 1, list);
+      if (node.word != null && current[current.length - 1] <= led) {
+        list.add(node.word);
+      }
+      if (min <= led) {
+        children(node, depth);
       }
-      return list;
     }
   }
 }
@@ -0,0 +1,417 @@
+package edu.brown.cs.mmines.Trie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class for a minimal acyclic automaton over a word list (a DAWG). Where a
+ * trie shares only the starts of words, this also shares their ends: any two
+ * states that accept exactly the same suffixes are merged, so "-ing", "-tion"
+ * and the like are stored once instead of once per word. It answers the same
+ * questions as a TrieNode (membership, prefix enumeration, led traversal),
+ * and holds one int value per word.
+ *
+ * The automaton is built in one pass over the words in sorted order, the way
+ * Daciuk et al. do it: only the path of the last word added can still
+ * change, so once a word is added the part of the previous word's path it
+ * doesn't share is final, and each state there is swapped for an equal one
+ * already built, if there is one. Once built it is flattened into arrays.
+ *
+ * Values can't hang off states, since states are shared by many words.
+ * Instead every transition records how many words sort before the ones
+ * through it, so walking a word sums to its position in sorted order, which
+ * indexes an array of values.
+ *
+ * @author maxmines
+ *
+ */
+public class WordAutomaton {
+  private static final int ROOT = 0;
+
+  // transitions of state s are [first[s], first[s + 1]), sorted by label
+  private final int[] first;
+  private final boolean[] accepting;
+  private final char[] labels;
+  private final int[] targets;
+  // words, from the state the transition leaves, that sort before the ones
+  // through it: the state's own word if it has one, and those through
+  // earlier transitions
+  private final int[] before;
+  // per word, in sorted order
+  private final int[] values;
+
+  /**
+   * Constructor for WordAutomaton.
+   *
+   * @param dictionary
+   *          - the words and their values, such as unigram counts. Words must
+   *          not be empty.
+   */
+  public WordAutomaton(Map<String, Integer> dictionary) {
+    List<String> words = new ArrayList<String>(dictionary.keySet());
+    Collections.sort(words);
+
+    Builder builder = new Builder();
+    for (String word : words) {
+      builder.add(word);
+    }
+    State root = builder.finish();
+
+    // number the states, root first, and count their transitions
+    List<State> states = new ArrayList<State>();
+    Map<State, Integer> ids = new HashMap<State, Integer>();
+    ids.put(root, ROOT);
+    states.add(root);
+    int transitions = 0;
+    for (int i = 0; i < states.size(); i++) {
+      State state = states.get(i);
+      transitions += state.labels.length;
+      for (State next : state.next) {
+        if (!ids.containsKey(next)) {
+          ids.put(next, states.size());
+          states.add(next);
+        }
+      }
+    }
+
+    this.first = new int[states.size() + 1];
+    this.accepting = new boolean[states.size()];
+    this.labels = new char[transitions];
+    this.targets = new int[transitions];
+    this.before = new int[transitions];
+    int t = 0;
+    for (int s = 0; s < states.size(); s++) {
+      State state = states.get(s);
+      first[s] = t;
+      accepting[s] = state.accepting;
+      int count = state.accepting ? 1 : 0;
+      for (int i = 0; i < state.labels.length; i++) {
+        labels[t] = state.labels[i];
+        targets[t] = ids.get(state.next[i]);
+        before[t] = count;
+        count += state.next[i].words;
+        t++;
+      }
+    }
+    first[states.size()] = t;
+
+    this.values = new int[words.size()];
+    for (int i = 0; i < words.size(); i++) {
+      values[i] = dictionary.get(words.get(i));
+    }
+  }
+
+  /**
+   * A state while the automaton is being built. Once registered it is never
+   * changed again, so it can be hashed on its contents; its children are
+   * registered before it, so they compare by identity.
+   */
+  private static final class State {
+    private boolean accepting = false;
+    private char[] labels = new char[0];
+    private State[] next = new State[0];
+    // words accepted from here on, set when registered
+    private int words;
+
+    void append(char label, State state) {
+      int n = labels.length;
+      labels = Arrays.copyOf(labels, n + 1);
+      next = Arrays.copyOf(next, n + 1);
+      labels[n] = label;
+      next[n] = state;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof State)) {
+        return false;
+      }
+      State other = (State) o;
+      if (accepting != other.accepting
+          || !Arrays.equals(labels, other.labels)) {
+        return false;
+      }
+      for (int i = 0; i < next.length; i++) {
+        if (next[i] != other.next[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = accepting ? 1 : 0;
+      for (int i = 0; i < labels.length; i++) {
+        hash = 31 * (31 * hash + labels[i])
+            + System.identityHashCode(next[i]);
+      }
+      return hash;
+    }
+  }
+
+  /**
+   * Incremental construction from words added in sorted order.
+   */
+  private static final class Builder {
+    private final Map<State, State> register = new HashMap<State, State>();
+    private final List<State> path = new ArrayList<State>();
+    private String previous = "";
+
+    Builder() {
+      path.add(new State());
+    }
+
+    void add(String word) {
+      if (word.isEmpty() || word.compareTo(previous) <= 0) {
+        throw new IllegalArgumentException(
+            "words must be non-empty, distinct and sorted");
+      }
+      int common = 0;
+      int limit = Math.min(word.length(), previous.length());
+      while (common < limit && word.charAt(common) == previous.charAt(common)) {
+        common++;
+      }
+      minimize(common);
+      for (int i = common; i < word.length(); i++) {
+        State state = new State();
+        path.get(i).append(word.charAt(i), state);
+        path.add(state);
+      }
+      path.get(word.length()).accepting = true;
+      previous = word;
+    }
+
+    /**
+     * Registers the states of the previous word's path below depth, swapping
+     * each for an equal one if one is registered already.
+     *
+     * @param depth
+     *          - how much of the path stays open.
+     */
+    void minimize(int depth) {
+      for (int i = path.size() - 1; i > depth; i--) {
+        State state = path.remove(i);
+        State parent = path.get(i - 1);
+        State existing = register.get(state);
+        if (existing == null) {
+          state.words = count(state);
+          register.put(state, state);
+        } else {
+          parent.next[parent.next.length - 1] = existing;
+        }
+      }
+    }
+
+    State finish() {
+      minimize(0);
+      State root = path.get(0);
+      root.words = count(root);
+      return root;
+    }
+
+    private static int count(State state) {
+      int words = state.accepting ? 1 : 0;
+      for (State next : state.next) {
+        words += next.words;
+      }
+      return words;
+    }
+  }
+
+  /**
+   * Follows the transition for a letter out of a state.
+   *
+   * @param state
+   *          - the state.
+   * @param letter
+   *          - the letter.
+   * @return - the transition's index, or -1 if there is none.
+   */
+  private int transition(int state, char letter) {
+    int at = Arrays.binarySearch(labels, first[state], first[state + 1],
+        letter);
+    return (at < 0) ? -1 : at;
+  }
+
+  /**
+   * Position of a word among the words in sorted order.
+   *
+   * @param word
+   *          - the word.
+   * @return - its index, or -1 if it isn't in the automaton.
+   */
+  public int indexOf(String word) {
+    int state = ROOT;
+    int index = 0;
+    for (int i = 0; i < word.length(); i++) {
+      int t = transition(state, word.charAt(i));
+      if (t < 0) {
+        return -1;
+      }
+      index += before[t];
+      state = targets[t];
+    }
+    return accepting[state] ? index : -1;
+  }
+
+  /**
+   * Whether a word is in the automaton.
+   *
+   * @param word
+   *          - the word.
+   * @return - true if it is.
+   */
+  public boolean contains(String word) {
+    return indexOf(word) >= 0;
+  }
+
+  /**
+   * Getter method for a word's value.
+   *
+   * @param word
+   *          - the word.
+   * @return - the value it was built with, or null if it isn't in the
+   *         automaton.
+   */
+  public Integer getValue(String word) {
+    int index = indexOf(word);
+    return (index < 0) ? null : values[index];
+  }
+
+  /**
+   * Finds every word starting with a prefix, like findNode followed by
+   * returnWordChildren on a TrieNode.
+   *
+   * @param prefix
+   *          - the prefix.
+   * @param list
+   *          - the place to add the words found, in sorted order.
+   * @return - the list containing the results.
+   */
+  public List<String> wordsWithPrefix(String prefix, List<String> list) {
+    int state = ROOT;
+    for (int i = 0; i < prefix.length(); i++) {
+      int t = transition(state, prefix.charAt(i));
+      if (t < 0) {
+        return list;
+      }
+      state = targets[t];
+    }
+    StringBuilder sb = new StringBuilder(prefix);
+    collect(state, sb, list);
+    return list;
+  }
+
+  private void collect(int state, StringBuilder sb, List<String> list) {
+    if (accepting[state]) {
+      list.add(sb.toString());
+    }
+    for (int t = first[state]; t < first[state + 1]; t++) {
+      sb.append(labels[t]);
+      collect(targets[t], sb, list);
+      sb.setLength(sb.length() - 1);
+    }
+  }
+
+  /**
+   * Method for finding every word within a given lev distance of a word,
+   * the same walk as TrieNode.lev: one row of the distance table per letter
+   * of the path, and no going further once a row's minimum exceeds led.
+   * Shared states are simply visited once per path into them, since the
+   * rows depend on the path.
+   *
+   * @param wordComp
+   *          - the word to evaluate lev distances against.
+   * @param led
+   *          - the maximum distance allowed.
+   * @param list
+   *          - the place to add new findings.
+   * @return - the list containing the results.
+   */
+  public List<String> lev(String wordComp, int led, List<String> list) {
+    char[] target = wordComp.toCharArray();
+    List<int[]> rows = new ArrayList<int[]>();
+    int[] row = new int[target.length + 1];
+    for (int i = 0; i < row.length; i++) {
+      row[i] = i;
+    }
+    rows.add(row);
+    levChildren(ROOT, target, led, rows, new StringBuilder(), list);
+    return list;
+  }
+
+  private void levChildren(int state, char[] target, int led,
+      List<int[]> rows, StringBuilder path, List<String> list) {
+    int depth = path.length();
+    int[] previous = rows.get(depth);
+    if (rows.size() <= depth + 1) {
+      rows.add(new int[target.length + 1]);
+    }
+    int[] current = rows.get(depth + 1);
+    for (int t = first[state]; t < first[state + 1]; t++) {
+      char letter = labels[t];
+      current[0] = depth + 1;
+      int min = current[0];
+      for (int i = 1; i < current.length; i++) {
+        int cost = (target[i - 1] == letter) ? 0 : 1;
+        int value = Math.min(previous[i - 1] + cost,
+            Math.min(previous[i], current[i - 1]) + 1);
+        current[i] = value;
+        if (value < min) {
+          min = value;
+        }
+      }
+      path.append(letter);
+      int next = targets[t];
+      if (accepting[next] && current[current.length - 1] <= led) {
+        list.add(path.toString());
+      }
+      if (min <= led) {
+        levChildren(next, target, led, rows, path, list);
+      }
+      path.setLength(depth);
+    }
+  }
+
+  /**
+   * Getter method for the number of words.
+   *
+   * @return - the number of words.
+   */
+  public int size() {
+    return this.values.length;
+  }
+
+  /**
+   * Getter method for the number of states.
+   *
+   * @return - the number of states.
+   */
+  public int getStateCount() {
+    return this.accepting.length;
+  }
+
+  /**
+   * Getter method for the number of transitions.
+   *
+   * @return - the number of transitions.
+   */
+  public int getTransitionCount() {
+    return this.labels.length;
+  }
+
+  /**
+   * Bytes taken by the automaton's arrays.
+   *
+   * @return - the size in bytes.
+   */
+  public long getMemoryBytes() {
+    return 4L * first.length + accepting.length
+        + (2L + 4 + 4) * labels.length + 4L * values.length;
+  }
+}
@@ -0,0 +1,45 @@
+package edu.brown.cs.mmines.stars;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the queries of a batch k nearest neighbors search over the common
+ * fork-join pool, for every index answering nearestNeighbors the same way.
+ *
+ * @author maxmines
+ *
+ */
+final class BatchSearch {
+
+  private BatchSearch() {
+  }
+
+  /**
+   * Runs a query per target, in parallel.
+   *
+   * @param targets
+   *          - the number of targets.
+   * @param query
+   *          - answers the query for the target with a given index.
+   * @param <T>
+   *          - the type of the results.
+   * @return - for each target, in order, the answer to its query.
+   */
+  static <T> List<List<T>> run(int targets, IntFunction<List<T>> query) {
+    // each query sets only its own slot, so the list is never resized
+    List<List<T>> toReturn = new ArrayList<>(
+        Collections.<List<T>>nCopies(targets, null));
+    IntStream.range(0, targets).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int i) {
+        toReturn.set(i, query.apply(i));
+      }
+    });
+    return toReturn;
+  }
+}
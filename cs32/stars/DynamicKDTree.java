@@ -0,0 +1,422 @@
+package edu.brown.cs.mmines.stars;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+/**
+ * Class for KDTrees that take inserts and removes. KDTrees themselves are
+ * static, so this keeps a log-structured set of them instead: new KDables go
+ * into a small buffer that is scanned linearly, a full buffer becomes a tree
+ * of its own, and whenever the newest tree is at least half the size of the
+ * one before it the two are rebuilt into one. Tree sizes therefore shrink
+ * geometrically and there are only O(log n) of them, so a query that visits
+ * each of them (sharing one heap, so later trees prune against earlier
+ * results) stays polylogarithmic. Removed KDables are marked in a per-tree
+ * bitset and skipped by searches; a tree that is more than half removed is
+ * rebuilt from what is left.
+ *
+ * Queries take a read lock and updates a write lock, so queries still run
+ * concurrently with each other.
+ *
+ * @author maxmines
+ *
+ * @param <T>
+ *          - a KDable object type.
+ */
+public class DynamicKDTree<T extends KDable<T>>
+    implements SpatialIndex<T> {
+  // inserts are buffered until there are this many
+  private static final int BUFFER_SIZE = 64;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final int dims;
+  // every level is built under the metric of the base tree
+  private final Metric metric;
+  // largest first
+  private final List<Level> levels = new ArrayList<>();
+  private final List<T> buffer = new ArrayList<>();
+  private int size = 0;
+
+  /**
+   * Constructor for DynamicKDTree.
+   *
+   * @param base
+   *          - an already built tree to start from.
+   */
+  DynamicKDTree(KDTree<T> base) {
+    levels.add(new Level(base));
+    this.size = base.size();
+    this.dims = base.dimensions();
+    this.metric = base.metric();
+  }
+
+  /**
+   * A static tree, and the slots of it that have been removed.
+   */
+  private final class Level {
+    private final KDTree<T> tree;
+    private final BitSet deleted = new BitSet();
+    private int live;
+
+    Level(KDTree<T> tree) {
+      this.tree = tree;
+      this.live = tree.size();
+    }
+
+    /**
+     * The KDables of this level that have not been removed.
+     *
+     * @return - the live KDables, in tree order.
+     */
+    List<T> liveKDables() {
+      List<T> all = tree.kdablesInTreeOrder();
+      List<T> toReturn = new ArrayList<>(live);
+      for (int slot = 0; slot < all.size(); slot++) {
+        if (!deleted.get(slot)) {
+          toReturn.add(all.get(slot));
+        }
+      }
+      return toReturn;
+    }
+  }
+
+  /**
+   * Inserts a KDable.
+   *
+   * @param kdable
+   *          - the KDable to insert.
+   */
+  void insert(T kdable) {
+    if (kdable.getCoordinates().length != dims) {
+      throw new IllegalArgumentException(
+          "KDable must have " + dims + " dimensions");
+    }
+    lock.writeLock().lock();
+    try {
+      buffer.add(kdable);
+      size++;
+      if (buffer.size() >= BUFFER_SIZE) {
+        levels.add(new Level(newTree(buffer)));
+        buffer.clear();
+        mergeSmallLevels();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a KDable: one at exactly its coordinates that equals it.
+   *
+   * @param kdable
+   *          - the KDable to remove.
+   * @return - true if it was found and removed.
+   */
+  boolean remove(T kdable) {
+    lock.writeLock().lock();
+    try {
+      double[] target = kdable.getCoordinates();
+      for (int i = 0; i < buffer.size(); i++) {
+        T buffered = buffer.get(i);
+        // as in the levels, equals alone may only compare ids
+        if (sameCoordinates(buffered.getCoordinates(), target)
+            && kdable.equals(buffered)) {
+          buffer.remove(i);
+          size--;
+          return true;
+        }
+      }
+      for (int i = levels.size() - 1; i >= 0; i--) {
+        Level level = levels.get(i);
+        int slot = level.tree.find(kdable, level.deleted);
+        if (slot >= 0) {
+          level.deleted.set(slot);
+          level.live--;
+          size--;
+          if (level.live == 0) {
+            levels.remove(i);
+          } else if (level.live < level.tree.size() / 2) {
+            // partial rebuild of just this level
+            levels.set(i, new Level(newTree(level.liveKDables())));
+            mergeSmallLevels();
+          }
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static boolean sameCoordinates(double[] a, double[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int d = 0; d < a.length; d++) {
+      if (a[d] != b[d]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Rebuilds the newest two levels into one for as long as the newest is at
+   * least half the size of the one before it. Keeps the levels largest first.
+   */
+  private void mergeSmallLevels() {
+    Collections.sort(levels, new Comparator<Level>() {
+      @Override
+      public int compare(Level a, Level b) {
+        return Integer.compare(b.live, a.live);
+      }
+    });
+    while (levels.size() >= 2) {
+      Level last = levels.get(levels.size() - 1);
+      Level previous = levels.get(levels.size() - 2);
+      if (last.live * 2 < previous.live) {
+        break;
+      }
+      List<T> merged = previous.liveKDables();
+      merged.addAll(last.liveKDables());
+      levels.remove(levels.size() - 1);
+      levels.set(levels.size() - 1, new Level(newTree(merged)));
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return this.size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public int dimensions() {
+    return this.dims;
+  }
+
+  private KDTree<T> newTree(List<T> kdables) {
+    return new KDTree<>(kdables, KDTree.DEFAULT_BUCKET_SIZE, metric);
+  }
+
+  /**
+   * Number of static trees currently held, for reporting.
+   *
+   * @return - the number of levels.
+   */
+  int levelCount() {
+    lock.readLock().lock();
+    try {
+      return this.levels.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<T> nearestNeighbor(T target1, int nn)
+      throws IllegalArgumentException {
+    return nearestNeighbor(target1, nn, SearchLimits.exact()).getNeighbors();
+  }
+
+  /**
+   * Nearest neighbor search that may be cut short by its limits. The visit
+   * budget is shared by all the trees.
+   *
+   * @param target1
+   *          - the target.
+   * @param nn
+   *          - the number of neighbors.
+   * @param limits
+   *          - the approximation factor and visit budget of this query.
+   * @return - the neighbors, and whether they are exact.
+   */
+  NeighborResult<T> nearestNeighbor(T target1, int nn, SearchLimits limits)
+      throws IllegalArgumentException {
+    if (nn < 1) {
+      throw new IllegalArgumentException("K must be at least 1");
+    }
+    List<T> found = nearestNeighbor(target1.getCoordinates(), nn, limits);
+    return new NeighborResult<>(found, limits);
+  }
+
+  /**
+   * Picks KDables uniformly at random, with replacement, for benchmarks.
+   *
+   * @param n
+   *          - how many to pick.
+   * @param random
+   *          - the source of randomness.
+   * @return - the picked KDables, empty if there are none.
+   */
+  List<T> sample(int n, Random random) {
+    List<T> toReturn = new ArrayList<>(n);
+    lock.readLock().lock();
+    try {
+      if (size == 0) {
+        return toReturn;
+      }
+      int slots = buffer.size();
+      for (Level level : levels) {
+        slots += level.tree.size();
+      }
+      while (toReturn.size() < n) {
+        int slot = random.nextInt(slots);
+        if (slot < buffer.size()) {
+          toReturn.add(buffer.get(slot));
+          continue;
+        }
+        slot -= buffer.size();
+        for (Level level : levels) {
+          if (slot < level.tree.size()) {
+            if (!level.deleted.get(slot)) {
+              toReturn.add(level.tree.kdablesInTreeOrder().get(slot));
+            }
+            break;
+          }
+          slot -= level.tree.size();
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return toReturn;
+  }
+
+  @Override
+  public List<T> radiusSearch(double r, T target1)
+      throws IllegalArgumentException {
+    if (r < 0) {
+      throw new IllegalArgumentException(
+          "radius must be an integer greater than 0.");
+    }
+    double[] target = target1.getCoordinates();
+    NeighborHeap<T> heap = new NeighborHeap<>(Integer.MAX_VALUE);
+    double[] prepared = metric.prepare(target);
+    double radiusKey = metric.toKey(r);
+    lock.readLock().lock();
+    try {
+      for (Level level : levels) {
+        level.tree.collectRadius(target, r, heap, level.deleted);
+      }
+      for (T kdable : buffer) {
+        double key = distanceKey(prepared, kdable.getCoordinates());
+        if (key <= radiusKey) {
+          heap.offer(kdable, key);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return heap.drainSorted();
+  }
+
+  /**
+   * Axis-aligned range search over every tree and the buffer. The trees are
+   * walked lazily as the stream is consumed, against a copy of their removed
+   * slots taken now, so updates made meanwhile don't show up in it.
+   *
+   * @param min
+   *          - the lowest corner of the box.
+   * @param max
+   *          - the highest corner of the box.
+   * @return - a lazy stream of the KDables in the box, bounds included.
+   */
+  Stream<T> rangeSearch(double[] min, double[] max)
+      throws IllegalArgumentException {
+    if (!metric.keepsCoordinates()) {
+      throw new UnsupportedOperationException(
+          "Box queries need a metric that keeps coordinates");
+    }
+    if (min.length != dims || max.length != dims) {
+      throw new IllegalArgumentException(
+          "Box corners must have " + dims + " dimensions");
+    }
+    List<Stream<T>> parts = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      for (Level level : levels) {
+        parts.add(level.tree.rangeSearch(min, max,
+            (BitSet) level.deleted.clone()));
+      }
+      List<T> buffered = new ArrayList<>();
+      for (T kdable : buffer) {
+        if (inBox(kdable.getCoordinates(), min, max)) {
+          buffered.add(kdable);
+        }
+      }
+      parts.add(buffered.stream());
+    } finally {
+      lock.readLock().unlock();
+    }
+    return parts.stream().flatMap(Function.identity());
+  }
+
+  private static boolean inBox(double[] c, double[] min, double[] max) {
+    for (int d = 0; d < c.length; d++) {
+      if (c[d] < min[d] || c[d] > max[d]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Batch k-nearest-neighbors, answered in parallel.
+   *
+   * @param targets
+   *          - the coordinates of each target point.
+   * @param nn
+   *          - the number of neighbors per target.
+   * @return - for each target, its neighbors, nearest first.
+   */
+  @Override
+  public List<List<T>> nearestNeighbors(double[][] targets, int nn)
+      throws IllegalArgumentException {
+    if (nn < 1) {
+      throw new IllegalArgumentException("K must be at least 1");
+    }
+    return BatchSearch.run(targets.length, new IntFunction<List<T>>() {
+      @Override
+      public List<T> apply(int i) {
+        return nearestNeighbor(targets[i], nn, SearchLimits.exact());
+      }
+    });
+  }
+
+  private List<T> nearestNeighbor(double[] target, int nn,
+      SearchLimits limits) {
+    NeighborHeap<T> heap = new NeighborHeap<>(nn);
+    double[] prepared = metric.prepare(target);
+    lock.readLock().lock();
+    try {
+      for (Level level : levels) {
+        level.tree.collectNearest(target, heap, level.deleted, limits);
+      }
+      for (T kdable : buffer) {
+        heap.offer(kdable, distanceKey(prepared, kdable.getCoordinates()));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return heap.drainSorted();
+  }
+
+  private double distanceKey(double[] prepared, double[] coordinates) {
+    return metric.key(prepared, metric.prepare(coordinates));
+  }
+}
@@ -0,0 +1,685 @@
+package edu.brown.cs.mmines.stars;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Class for hierarchical navigable small world graphs (Malkov and Yashunin),
+ * an approximate nearest neighbor index for high dimensional points, where
+ * no tree can prune much. Every point is a node on layer 0 and, with
+ * exponentially falling probability, on the layers above it. Each layer links
+ * every node to up to m of its near neighbors (2m on layer 0), picked so the
+ * links point in different directions. A search walks greedily down from the
+ * single node on the top layer, then does a best-first search of layer 0
+ * keeping the efSearch closest nodes seen; larger efSearch means better
+ * recall for more time.
+ *
+ * The points are inserted in parallel. While the graph is built, each
+ * node's links are guarded by the node's own lock, so concurrent inserts only
+ * wait on each other when they link to the same nodes. Once built the graph
+ * never changes, so searches read it without any locks.
+ *
+ * @author maxmines
+ *
+ * @param <T>
+ *          - a KDable object type.
+ */
+public class HNSWIndex<T extends KDable<T>> implements SpatialIndex<T> {
+  /**
+   * Default number of links per node and layer.
+   */
+  static final int DEFAULT_M = 16;
+  /**
+   * Default number of candidates kept while inserting.
+   */
+  static final int DEFAULT_EF_CONSTRUCTION = 200;
+  /**
+   * Default number of candidates kept while searching.
+   */
+  static final int DEFAULT_EF_SEARCH = 64;
+  // fixed so that the same points always get the same layers
+  private static final long SEED = 0x484e5357L;
+
+  private final int dims;
+  private final int m;
+  private final int efConstruction;
+  private volatile int efSearch;
+  private final List<T> kdables;
+  // dims coordinates per node, row by row
+  private final double[] points;
+  private final int[] levels;
+  // links[node][layer]: the number of links, then the linked nodes
+  private final int[][][] links;
+  // the top node so far and its level, guarded by entryLock while building
+  private final Object entryLock = new Object();
+  private int buildEntry;
+  private int buildTop;
+  // the top node and its level, once built
+  private final int entryPoint;
+  private final int maxLevel;
+  // search state not in use, kept for the next search to pick up
+  private final ConcurrentLinkedQueue<Scratch> idle =
+      new ConcurrentLinkedQueue<>();
+
+  /**
+   * Constructor for HNSWIndex, with the default parameters.
+   *
+   * @param toBeNodes
+   *          - a list of KDables, to be indexed.
+   */
+  HNSWIndex(List<T> toBeNodes) throws IllegalArgumentException {
+    this(toBeNodes, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+  }
+
+  /**
+   * Constructor for HNSWIndex.
+   *
+   * @param toBeNodes
+   *          - a list of KDables, to be indexed.
+   * @param m
+   *          - the number of links per node and layer, at least 2.
+   * @param efConstruction
+   *          - the number of candidates kept while inserting, at least m.
+   * @param efSearch
+   *          - the number of candidates kept while searching, at least 1.
+   */
+  HNSWIndex(List<T> toBeNodes, int m, int efConstruction, int efSearch)
+      throws IllegalArgumentException {
+    if (toBeNodes.isEmpty()) {
+      throw new IllegalArgumentException("Input data must not be empty list");
+    }
+    if (m < 2 || efConstruction < m || efSearch < 1) {
+      throw new IllegalArgumentException(
+          "Need m >= 2, efConstruction >= m and efSearch >= 1");
+    }
+    this.dims = toBeNodes.get(0).getCoordinates().length;
+    this.m = m;
+    this.efConstruction = efConstruction;
+    this.efSearch = efSearch;
+    int size = toBeNodes.size();
+    this.kdables = new ArrayList<>(toBeNodes);
+    this.points = new double[size * dims];
+    for (int node = 0; node < size; node++) {
+      double[] c = kdables.get(node).getCoordinates();
+      if (c.length != dims) {
+        throw new IllegalArgumentException(
+            "All KDables must have the same number of dimensions");
+      }
+      System.arraycopy(c, 0, points, node * dims, dims);
+    }
+
+    // layers are drawn up front, so every node's links exist before any
+    // other insert can reach it
+    Random random = new Random(SEED);
+    double levelFactor = 1 / Math.log(m);
+    this.levels = new int[size];
+    this.links = new int[size][][];
+    for (int node = 0; node < size; node++) {
+      int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+      levels[node] = level;
+      links[node] = new int[level + 1][];
+      links[node][0] = new int[2 * m + 1];
+      for (int layer = 1; layer <= level; layer++) {
+        links[node][layer] = new int[m + 1];
+      }
+    }
+
+    this.buildEntry = 0;
+    this.buildTop = levels[0];
+    IntStream.range(1, size).parallel().forEach(new IntConsumer() {
+      @Override
+      public void accept(int node) {
+        insert(node);
+      }
+    });
+    synchronized (entryLock) {
+      this.entryPoint = buildEntry;
+      this.maxLevel = buildTop;
+    }
+  }
+
+  /**
+   * Setter for efSearch, the number of candidates kept while searching.
+   *
+   * @param ef
+   *          - the new efSearch, at least 1.
+   */
+  void setEfSearch(int ef) {
+    if (ef < 1) {
+      throw new IllegalArgumentException("efSearch must be at least 1");
+    }
+    this.efSearch = ef;
+  }
+
+  /**
+   * Getter for efSearch.
+   *
+   * @return - the number of candidates kept while searching.
+   */
+  int getEfSearch() {
+    return this.efSearch;
+  }
+
+  /**
+   * Links a node into every layer it is on.
+   *
+   * @param node
+   *          - the node to insert.
+   */
+  private void insert(int node) {
+    int entry;
+    int top;
+    synchronized (entryLock) {
+      entry = buildEntry;
+      top = buildTop;
+    }
+    double[] query = coordinates(node);
+    int level = levels[node];
+    for (int layer = top; layer > level; layer--) {
+      entry = searchLayer(query, entry, 1, layer, true).peekNode();
+    }
+    for (int layer = Math.min(top, level); layer >= 0; layer--) {
+      NodeHeap found = searchLayer(query, entry, efConstruction, layer, true);
+      int cap = (layer == 0) ? 2 * m : m;
+      int count = found.size();
+      int[] candidates = new int[count];
+      double[] distances = new double[count];
+      // the heap pops farthest first
+      for (int i = count - 1; i >= 0; i--) {
+        distances[i] = found.peekKey();
+        candidates[i] = found.pop();
+      }
+      entry = candidates[0];
+      int[] selected = selectNeighbors(candidates, distances, count, m);
+      // other inserts may have linked back to this node already
+      addLinks(node, selected, layer, cap);
+      for (int other : selected) {
+        addLinks(other, new int[] {node}, layer, cap);
+      }
+    }
+    if (level > top) {
+      synchronized (entryLock) {
+        if (level > buildTop) {
+          buildTop = level;
+          buildEntry = node;
+        }
+      }
+    }
+  }
+
+  /**
+   * Links from one node to others, on top of the links it has. If that
+   * makes too many, the node's links are chosen again from all of them.
+   *
+   * @param from
+   *          - the node to add the links to.
+   * @param to
+   *          - the nodes to link to.
+   * @param layer
+   *          - the layer.
+   * @param cap
+   *          - the most links a node has on that layer.
+   */
+  private void addLinks(int from, int[] to, int layer, int cap) {
+    synchronized (links[from]) {
+      int[] own = links[from][layer];
+      int count = own[0];
+      int[] candidates = new int[count + to.length];
+      System.arraycopy(own, 1, candidates, 0, count);
+      int total = count;
+      for (int node : to) {
+        boolean linked = false;
+        for (int i = 0; i < total && !linked; i++) {
+          linked = candidates[i] == node;
+        }
+        if (!linked) {
+          candidates[total++] = node;
+        }
+      }
+      if (total <= cap) {
+        System.arraycopy(candidates, count, own, count + 1, total - count);
+        own[0] = total;
+        return;
+      }
+      candidates = Arrays.copyOf(candidates, total);
+      double[] distances = new double[total];
+      for (int i = 0; i < total; i++) {
+        distances[i] = distanceSq(from, candidates[i]);
+      }
+      sortByDistance(candidates, distances);
+      int[] selected = selectNeighbors(candidates, distances, total, cap);
+      own[0] = selected.length;
+      System.arraycopy(selected, 0, own, 1, selected.length);
+    }
+  }
+
+  /**
+   * The neighbor selection heuristic: goes through the candidates nearest
+   * first, keeping one only if it is closer to the new node than to every
+   * candidate kept so far, so the links spread out instead of all pointing
+   * into one cluster.
+   *
+   * @param candidates
+   *          - candidate nodes, nearest first.
+   * @param distances
+   *          - their squared distances to the new node.
+   * @param count
+   *          - the number of candidates.
+   * @param most
+   *          - the most to keep.
+   * @return - the kept nodes.
+   */
+  private int[] selectNeighbors(int[] candidates, double[] distances,
+      int count, int most) {
+    int[] kept = new int[Math.min(count, most)];
+    int keptCount = 0;
+    for (int i = 0; i < count && keptCount < kept.length; i++) {
+      boolean good = true;
+      for (int j = 0; j < keptCount; j++) {
+        if (distanceSq(candidates[i], kept[j]) < distances[i]) {
+          good = false;
+          break;
+        }
+      }
+      if (good) {
+        kept[keptCount++] = candidates[i];
+      }
+    }
+    return Arrays.copyOf(kept, keptCount);
+  }
+
+  private static void sortByDistance(int[] nodes, double[] distances) {
+    for (int i = 1; i < nodes.length; i++) {
+      int node = nodes[i];
+      double dist = distances[i];
+      int j = i - 1;
+      while (j >= 0 && distances[j] > dist) {
+        nodes[j + 1] = nodes[j];
+        distances[j + 1] = distances[j];
+        j--;
+      }
+      nodes[j + 1] = node;
+      distances[j + 1] = dist;
+    }
+  }
+
+  /**
+   * Best-first search of one layer from an entry node.
+   *
+   * @param query
+   *          - the coordinates searched for.
+   * @param entry
+   *          - the node to start from.
+   * @param ef
+   *          - the number of closest nodes to keep.
+   * @param layer
+   *          - the layer.
+   * @param building
+   *          - true while the graph is built, to copy links under their locks.
+   * @return - a heap of the closest nodes found, farthest on top.
+   */
+  private NodeHeap searchLayer(double[] query, int entry, int ef, int layer,
+      boolean building) {
+    Scratch s = takeScratch();
+    s.startVisit();
+    NodeHeap candidates = new NodeHeap(false);
+    NodeHeap results = new NodeHeap(true);
+    double entryDist = distanceSq(query, entry);
+    s.visit(entry);
+    candidates.push(entry, entryDist);
+    results.push(entry, entryDist);
+
+    while (candidates.size() > 0) {
+      if (results.size() >= ef && candidates.peekKey() > results.peekKey()) {
+        break;
+      }
+      int current = candidates.pop();
+      int[] linked = building ? s.copyLinks(links[current], layer)
+          : links[current][layer];
+      int count = linked[0];
+      for (int i = 1; i <= count; i++) {
+        int next = linked[i];
+        if (!s.visit(next)) {
+          continue;
+        }
+        double dist = distanceSq(query, next);
+        if (results.size() < ef || dist < results.peekKey()) {
+          candidates.push(next, dist);
+          results.push(next, dist);
+          if (results.size() > ef) {
+            results.pop();
+          }
+        }
+      }
+    }
+    idle.offer(s);
+    return results;
+  }
+
+  /**
+   * Walks greedily down the upper layers to the entry node of layer 0.
+   *
+   * @param query
+   *          - the coordinates searched for.
+   * @return - the node to start the layer 0 search from.
+   */
+  private int descend(double[] query) {
+    int entry = entryPoint;
+    for (int layer = maxLevel; layer > 0; layer--) {
+      entry = searchLayer(query, entry, 1, layer, false).peekNode();
+    }
+    return entry;
+  }
+
+  @Override
+  public List<T> nearestNeighbor(T target1, int nn)
+      throws IllegalArgumentException {
+    return nearestNeighbor(target1, nn, efSearch);
+  }
+
+  /**
+   * Approximate nearest neighbors, with a given efSearch.
+   *
+   * @param target1
+   *          - the target.
+   * @param nn
+   *          - the number of neighbors, at least 1.
+   * @param ef
+   *          - the number of candidates to keep; raised to nn if lower.
+   * @return - the neighbors found, nearest first.
+   */
+  List<T> nearestNeighbor(T target1, int nn, int ef)
+      throws IllegalArgumentException {
+    if (nn < 1) {
+      throw new IllegalArgumentException("K must be at least 1");
+    }
+    return nearestNeighbor(target1.getCoordinates(), nn, ef);
+  }
+
+  private List<T> nearestNeighbor(double[] target, int nn, int ef) {
+    checkDims(target);
+    NodeHeap found = searchLayer(target, descend(target), Math.max(ef, nn),
+        0, false);
+    while (found.size() > nn) {
+      found.pop();
+    }
+    List<T> toReturn = new ArrayList<>(found.size());
+    while (found.size() > 0) {
+      toReturn.add(kdables.get(found.pop()));
+    }
+    Collections.reverse(toReturn);
+    return toReturn;
+  }
+
+  @Override
+  public List<List<T>> nearestNeighbors(double[][] targets, int nn)
+      throws IllegalArgumentException {
+    if (nn < 1) {
+      throw new IllegalArgumentException("K must be at least 1");
+    }
+    int ef = efSearch;
+    return BatchSearch.run(targets.length, new IntFunction<List<T>>() {
+      @Override
+      public List<T> apply(int i) {
+        return nearestNeighbor(targets[i], nn, ef);
+      }
+    });
+  }
+
+  /**
+   * Approximate radius search: searches layer 0 as for efSearch neighbors,
+   * then spreads out from those within the radius to their linked nodes
+   * within the radius, and so on. Points within the radius that no linked
+   * path of such points reaches are missed.
+   *
+   * @param r
+   *          - the radius.
+   * @param target1
+   *          - the target.
+   * @return - the KDables found within r of the target, nearest first.
+   */
+  @Override
+  public List<T> radiusSearch(double r, T target1)
+      throws IllegalArgumentException {
+    if (r < 0) {
+      throw new IllegalArgumentException(
+          "radius must be an integer greater than 0.");
+    }
+    double[] target = target1.getCoordinates();
+    checkDims(target);
+    double radiusSq = r * r;
+    NodeHeap found = searchLayer(target, descend(target), efSearch, 0,
+        false);
+
+    NeighborHeap<T> heap = new NeighborHeap<>(Integer.MAX_VALUE);
+    Scratch s = takeScratch();
+    s.startVisit();
+    int[] queue = new int[16];
+    int queued = 0;
+    while (found.size() > 0) {
+      double dist = found.peekKey();
+      int node = found.pop();
+      if (dist <= radiusSq && s.visit(node)) {
+        heap.offer(kdables.get(node), dist);
+        queue = grow(queue, queued);
+        queue[queued++] = node;
+      }
+    }
+    for (int head = 0; head < queued; head++) {
+      int[] linked = links[queue[head]][0];
+      int count = linked[0];
+      for (int i = 1; i <= count; i++) {
+        int next = linked[i];
+        if (!s.visit(next)) {
+          continue;
+        }
+        double dist = distanceSq(target, next);
+        if (dist <= radiusSq) {
+          heap.offer(kdables.get(next), dist);
+          queue = grow(queue, queued);
+          queue[queued++] = next;
+        }
+      }
+    }
+    idle.offer(s);
+    return heap.drainSorted();
+  }
+
+  /**
+   * Takes search state no other search is using, making new state if there
+   * is none.
+   *
+   * @return - the search state, to be put back in idle when done.
+   */
+  private Scratch takeScratch() {
+    Scratch s = idle.poll();
+    return (s == null) ? new Scratch(kdables.size(), m) : s;
+  }
+
+  private static int[] grow(int[] array, int used) {
+    if (used < array.length) {
+      return array;
+    }
+    return Arrays.copyOf(array, 2 * array.length);
+  }
+
+  private void checkDims(double[] target) {
+    if (target.length != dims) {
+      throw new IllegalArgumentException(
+          "Target must have " + dims + " dimensions");
+    }
+  }
+
+  private double[] coordinates(int node) {
+    return Arrays.copyOfRange(points, node * dims, (node + 1) * dims);
+  }
+
+  private double distanceSq(double[] query, int node) {
+    int base = node * dims;
+    double sum = 0;
+    for (int d = 0; d < dims; d++) {
+      double diff = query[d] - points[base + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  private double distanceSq(int a, int b) {
+    int baseA = a * dims;
+    int baseB = b * dims;
+    double sum = 0;
+    for (int d = 0; d < dims; d++) {
+      double diff = points[baseA + d] - points[baseB + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  @Override
+  public int size() {
+    return this.kdables.size();
+  }
+
+  @Override
+  public int dimensions() {
+    return this.dims;
+  }
+
+  /**
+   * Search state, used by one search at a time: which nodes the search has
+   * visited, by generation so it never has to be cleared, and room to copy a
+   * node's links out from under its lock while the graph is built. Static,
+   * so idle state kept around never holds on to an index.
+   */
+  private static final class Scratch {
+    private final int[] visitedIn;
+    private int generation = 0;
+    private final int[] copied;
+
+    Scratch(int size, int m) {
+      this.visitedIn = new int[size];
+      this.copied = new int[2 * m + 1];
+    }
+
+    void startVisit() {
+      generation++;
+      if (generation == 0) {
+        Arrays.fill(visitedIn, 0);
+        generation = 1;
+      }
+    }
+
+    /**
+     * Marks a node visited.
+     *
+     * @param node
+     *          - the node.
+     * @return - true if it had not been visited yet.
+     */
+    boolean visit(int node) {
+      if (visitedIn[node] == generation) {
+        return false;
+      }
+      visitedIn[node] = generation;
+      return true;
+    }
+
+    /**
+     * Copies a node's links on a layer, the count first, into copied.
+     *
+     * @param nodeLinks
+     *          - the node's links, on every layer it is on.
+     * @param layer
+     *          - the layer.
+     * @return - copied.
+     */
+    int[] copyLinks(int[][] nodeLinks, int layer) {
+      synchronized (nodeLinks) {
+        int[] own = nodeLinks[layer];
+        System.arraycopy(own, 0, copied, 0, own[0] + 1);
+        return copied;
+      }
+    }
+  }
+
+  /**
+   * A binary heap of nodes keyed on squared distance, in primitive arrays;
+   * a max-heap or a min-heap.
+   */
+  private static final class NodeHeap {
+    private final boolean max;
+    private int[] nodes = new int[16];
+    private double[] keys = new double[16];
+    private int size = 0;
+
+    NodeHeap(boolean max) {
+      this.max = max;
+    }
+
+    int size() {
+      return this.size;
+    }
+
+    int peekNode() {
+      return nodes[0];
+    }
+
+    double peekKey() {
+      return keys[0];
+    }
+
+    private boolean above(double a, double b) {
+      return max ? a > b : a < b;
+    }
+
+    void push(int node, double key) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, 2 * size);
+        keys = Arrays.copyOf(keys, 2 * size);
+      }
+      int pos = size++;
+      while (pos > 0) {
+        int parent = (pos - 1) >>> 1;
+        if (!above(key, keys[parent])) {
+          break;
+        }
+        nodes[pos] = nodes[parent];
+        keys[pos] = keys[parent];
+        pos = parent;
+      }
+      nodes[pos] = node;
+      keys[pos] = key;
+    }
+
+    int pop() {
+      int top = nodes[0];
+      size--;
+      int node = nodes[size];
+      double key = keys[size];
+      int pos = 0;
+      int half = size >>> 1;
+      while (pos < half) {
+        int child = 2 * pos + 1;
+        if (child + 1 < size && above(keys[child + 1], keys[child])) {
+          child++;
+        }
+        if (!above(keys[child], key)) {
+          break;
+        }
+        nodes[pos] = nodes[child];
+        keys[pos] = keys[child];
+        pos = child;
+      }
+      nodes[pos] = node;
+      keys[pos] = key;
+      return top;
+    }
+  }
+}
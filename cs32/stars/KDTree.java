@@ -1,325 +1,953 @@
 package edu.brown.cs.mmines.stars;
 
-import static com.google.common.collect.Lists.reverse;
-
+import java.nio.DoubleBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.Deque;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * Class for KDTrees.
+ * Class for KDTrees. The tree is not stored as a graph of node objects but
+ * implicitly in flat arrays: the KDables are permuted into "tree order", where
+ * the subtree covering the slots [lo, hi) has its median at (lo + hi) / 2, its
+ * left subtree in [lo, mid) and its right subtree in [mid + 1, hi).
+ *
+ * Coordinates are kept in one DoubleBuffer per dimension (structure of
+ * arrays), so a search only touches primitive columns until it has found its
+ * results. A tree built in memory wraps double[]s; a tree opened from a
+ * StarCatalog reads the same columns straight out of a mapped file.
+ *
+ * Distances are measured with the tree's Metric, EUCLIDEAN by default. The
+ * columns hold coordinates as the metric prepares them, and searches compare
+ * metric keys (squared distances for EUCLIDEAN), pruning a splitting plane
+ * with the metric's lower bound for it.
+ *
+ * Subtrees of at most bucketSize points are not split any further but kept as
+ * leaf buckets, their slots marked LEAF in the split dimensions. A search
+ * reaching a bucket scans it a column at a time, computing the squared
+ * distances of the whole bucket in one tight loop instead of descending
+ * point by point. A bucket size of 1 gives the classic one point per node
+ * tree.
+ *
+ * Per point the tree costs 8 bytes per dimension of coordinates and 2 bytes
+ * for the split dimension, plus one reference in the KDable list: about 26
+ * bytes (+ one reference) for a 3D star, on top of the KDables themselves.
  *
  * @author maxmines
  *
  * @param <T>
  *          - a KDable object type.
  */
-public class KDTree<T extends KDable<T>> {
-  private int k;
-  private KDNode root;
-  private int neighbors;
-  private T target;
+public class KDTree<T extends KDable<T>> implements SpatialIndex<T> {
+  // subtrees larger than this are built as separate fork-join tasks
+  private static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
+  /**
+   * Default number of points per leaf bucket.
+   */
+  static final int DEFAULT_BUCKET_SIZE = 16;
+  /**
+   * Split dimension of the slots in a leaf bucket.
+   */
+  static final short LEAF = -1;
+
+  private final int dims;
+  private final List<T> kdables;
+  private final DoubleBuffer[] coords;
+  private final ShortBuffer splitDims;
+  private final Metric metric;
+  // the default metric gets inlined loops instead of calls to the metric
+  private final boolean euclidean;
+  // backing arrays of coords when they have them, for the bucket scans
+  private final double[][] columns;
 
   /**
-   * Constructor for KDTree.
+   * Constructor for KDTree, with leaf buckets of the default size.
    *
    * @param toBeNodes
-   *          - a list of KDables, to be converted to nodes.
+   *          - a list of KDables, to be laid out in the tree.
    *
    */
   KDTree(List<T> toBeNodes) throws IllegalArgumentException {
+    this(toBeNodes, DEFAULT_BUCKET_SIZE);
+  }
+
+  /**
+   * Constructor for KDTree.
+   *
+   * @param toBeNodes
+   *          - a list of KDables, to be laid out in the tree.
+   * @param bucketSize
+   *          - the most points kept in one leaf bucket, at least 1.
+   *
+   */
+  KDTree(List<T> toBeNodes, int bucketSize) throws IllegalArgumentException {
+    this(toBeNodes, bucketSize, StandardMetric.EUCLIDEAN);
+  }
+
+  /**
+   * Constructor for KDTree.
+   *
+   * @param toBeNodes
+   *          - a list of KDables, to be laid out in the tree.
+   * @param bucketSize
+   *          - the most points kept in one leaf bucket, at least 1.
+   * @param metric
+   *          - the metric to search under.
+   *
+   */
+  KDTree(List<T> toBeNodes, int bucketSize, Metric metric)
+      throws IllegalArgumentException {
     if (toBeNodes.isEmpty()) {
-      throw new IllegalArgumentException(
-          "Input data must not be empty list, two lists must be same size");
-    } else { // setting up KDNodes for tree construction
-      List<KDNode> nodes = new LinkedList<>();
+      throw new IllegalArgumentException("Input data must not be empty list");
+    }
+    if (bucketSize < 1) {
+      throw new IllegalArgumentException("Bucket size must be at least 1");
+    }
+    // automatically determines k based on the inputted list.
+    this.dims = toBeNodes.get(0).getCoordinates().length;
+    if (dims > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many dimensions for a KDTree");
+    }
+    this.metric = metric;
+    this.euclidean = metric == StandardMetric.EUCLIDEAN;
+
+    List<T> byIndexList = new ArrayList<>(toBeNodes);
+    int size = byIndexList.size();
+    double[][] byIndex = new double[dims][size];
+    for (int i = 0; i < size; i++) {
+      double[] c = byIndexList.get(i).getCoordinates();
+      if (c.length != dims) {
+        throw new IllegalArgumentException(
+            "All KDables must have the same number of dimensions");
+      }
+      c = metric.prepare(c);
+      for (int d = 0; d < dims; d++) {
+        byIndex[d][i] = c[d];
+      }
+    }
+
+    // build tree
+    int[] perm = new int[size];
+    for (int i = 0; i < size; i++) {
+      perm[i] = i;
+    }
+    short[] splits = new short[size];
+    ForkJoinPool.commonPool()
+        .invoke(new BuildTask(perm, byIndex, splits, bucketSize, 0, size, 0));
+
+    // lay the KDables and their coordinates out in tree order
+    this.kdables = new ArrayList<>(size);
+    double[][] bySlot = new double[dims][size];
+    for (int slot = 0; slot < size; slot++) {
+      kdables.add(byIndexList.get(perm[slot]));
+      for (int d = 0; d < dims; d++) {
+        bySlot[d][slot] = byIndex[d][perm[slot]];
+      }
+    }
+    this.coords = new DoubleBuffer[dims];
+    for (int d = 0; d < dims; d++) {
+      coords[d] = DoubleBuffer.wrap(bySlot[d]);
+    }
+    this.splitDims = ShortBuffer.wrap(splits);
+    this.columns = bySlot;
+  }
+
+  /**
+   * Constructor for a KDTree that has already been laid out, for instance by
+   * a StarCatalog, searched under EUCLIDEAN. The columns are used as they
+   * are, not copied.
+   *
+   * @param kdables
+   *          - the KDables, in tree order.
+   * @param coords
+   *          - one column of coordinates per dimension, in tree order.
+   * @param splitDims
+   *          - the split dimension of each slot.
+   */
+  KDTree(List<T> kdables, DoubleBuffer[] coords, ShortBuffer splitDims) {
+    if (kdables.isEmpty() || coords.length == 0) {
+      throw new IllegalArgumentException("Input data must not be empty list");
+    }
+    for (DoubleBuffer column : coords) {
+      if (column.limit() != kdables.size()) {
+        throw new IllegalArgumentException("Columns must match the KDables");
+      }
+    }
+    if (splitDims.limit() != kdables.size()) {
+      throw new IllegalArgumentException("Columns must match the KDables");
+    }
+    this.dims = coords.length;
+    this.kdables = kdables;
+    this.coords = coords;
+    this.splitDims = splitDims;
+    this.metric = StandardMetric.EUCLIDEAN;
+    this.euclidean = true;
+    this.columns = backingArrays(coords);
+  }
 
-      for (T tbn : toBeNodes) {
-        KDNode toAdd = new KDNode(tbn);
-        nodes.add(toAdd);
+  private static double[][] backingArrays(DoubleBuffer[] coords) {
+    double[][] arrays = new double[coords.length][];
+    for (int d = 0; d < coords.length; d++) {
+      if (!coords[d].hasArray() || coords[d].arrayOffset() != 0) {
+        return null;
       }
+      arrays[d] = coords[d].array();
+    }
+    return arrays;
+  }
+
+  /**
+   * Task used to lay out the KDTree, run by the constructor on the common
+   * fork-join pool. Selects the median of the slots [lo, hi) on the current
+   * dimension into the middle slot, with the smaller points before it and the
+   * greater points after it, then builds both subtrees. Subtrees no larger
+   * than the bucket size are left as they are and marked LEAF. Large subtrees
+   * are built in parallel; the two halves never share slots.
+   */
+  private class BuildTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int[] perm;
+    private final double[][] byIndex;
+    private final short[] splits;
+    private final int bucketSize;
+    private final int lo;
+    private final int hi;
+    private final int currentDim;
+
+    /**
+     * Constructor for BuildTask.
+     *
+     * @param perm
+     *          - the permutation being built, slot to KDable index.
+     * @param byIndex
+     *          - the coordinates, indexed by KDable index.
+     * @param splits
+     *          - the split dimension of each slot, being filled in.
+     * @param bucketSize
+     *          - the most points kept in one leaf bucket.
+     * @param lo
+     *          - first slot of this subtree.
+     * @param hi
+     *          - one past the last slot of this subtree.
+     * @param currentDim
+     *          - the current depth, or dimension of the tree.
+     */
+    BuildTask(int[] perm, double[][] byIndex, short[] splits, int bucketSize,
+        int lo, int hi, int currentDim) {
+      this.perm = perm;
+      this.byIndex = byIndex;
+      this.splits = splits;
+      this.bucketSize = bucketSize;
+      this.lo = lo;
+      this.hi = hi;
+      this.currentDim = currentDim;
+    }
+
+    @Override
+    protected void compute() {
+      buildTree(lo, hi, currentDim);
+    }
 
-      // automatically determines k based on the inputted list.
-      this.k = toBeNodes.get(0).getCoordinates().length - 1;
+    /**
+     * Recursive build of the slots [from, to).
+     *
+     * @param from
+     *          - first slot of this subtree.
+     * @param to
+     *          - one past the last slot of this subtree.
+     * @param dim
+     *          - the dimension to split on.
+     */
+    private void buildTree(int from, int to, int dim) {
+      if (to - from <= bucketSize) {
+        Arrays.fill(splits, from, to, LEAF);
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      select(perm, byIndex[dim], from, to, mid);
+      splits[mid] = (short) dim;
+
+      int nextDim = (dim + 1) % dims;
+      if (to - from > PARALLEL_BUILD_THRESHOLD) {
+        invokeAll(
+            new BuildTask(perm, byIndex, splits, bucketSize, from, mid,
+                nextDim),
+            new BuildTask(perm, byIndex, splits, bucketSize, mid + 1, to,
+                nextDim));
+      } else {
+        buildTree(from, mid, nextDim);
+        buildTree(mid + 1, to, nextDim);
+      }
+    }
+  }
 
-      // build tree
-      this.root = buildTree(nodes, 0);
+  /**
+   * Quickselect over perm[lo, hi), comparing on values[perm[i]]. Afterwards
+   * perm[k] holds the k-th smallest, everything before it is no greater and
+   * everything after it no smaller. Expected linear time.
+   *
+   * @param perm
+   *          - the index array to permute.
+   * @param values
+   *          - the values to compare, indexed by the entries of perm.
+   * @param lo
+   *          - first slot of the range.
+   * @param hi
+   *          - one past the last slot of the range.
+   * @param k
+   *          - the slot to select into.
+   */
+  static void select(int[] perm, double[] values, int lo, int hi, int k) {
+    int left = lo;
+    int right = hi - 1;
+    while (right > left) {
+      // median of three pivot
+      double a = values[perm[left]];
+      double b = values[perm[(left + right) >>> 1]];
+      double c = values[perm[right]];
+      double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (values[perm[i]] < pivot) {
+          i++;
+        }
+        while (values[perm[j]] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = perm[i];
+          perm[i] = perm[j];
+          perm[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
     }
   }
 
+  @Override
+  public List<T> nearestNeighbor(T target1, int nn)
+      throws IllegalArgumentException {
+    return nearestNeighbor(target1, nn, SearchLimits.exact()).getNeighbors();
+  }
+
   /**
-   * buildTree method, used to construct the KDTree. Called by constructor.
+   * Nearest neighbor search that may be cut short by its limits, for when an
+   * almost right answer now beats an exact one later.
    *
-   * @param nodeList
-   *          - a list of nodes to split into median, smaller than median, and
-   *          greater than median
-   * @param currentDim
-   *          - the current depth, or dimension of the tree.
-   * @return a KDNode which will be recursively bound to the parents.
+   * @param target1
+   *          - the target.
+   * @param nn
+   *          - the number of neighbors.
+   * @param limits
+   *          - the approximation factor and visit budget of this query.
+   * @return - the neighbors, and whether they are exact.
    */
-  private KDNode buildTree(List<KDNode> nodeList, int currentDim) {
+  NeighborResult<T> nearestNeighbor(T target1, int nn, SearchLimits limits)
+      throws IllegalArgumentException {
+    if (nn < 1) {
+      throw new IllegalArgumentException("K must be at least 1");
+    } else {
+      NeighborHeap<T> heap = new NeighborHeap<>(nn);
+      collectNearest(target1.getCoordinates(), heap, null, limits);
+      return new NeighborResult<>(heap.drainSorted(), limits);
+    }
+  }
 
-    Collections.sort(nodeList, new Comparator<KDNode>() {
+  /**
+   * Batch k-nearest-neighbors. The targets are spread over the common
+   * fork-join pool; the results come back in the order of the targets.
+   *
+   * @param targets
+   *          - the coordinates of each target point.
+   * @param nn
+   *          - the number of neighbors per target.
+   * @return - for each target, its neighbors, nearest first.
+   */
+  @Override
+  public List<List<T>> nearestNeighbors(double[][] targets, int nn)
+      throws IllegalArgumentException {
+    if (nn < 1) {
+      throw new IllegalArgumentException("K must be at least 1");
+    }
+    return BatchSearch.run(targets.length, new IntFunction<List<T>>() {
       @Override
-      public int compare(KDNode o1, KDNode o2) {
-        return Double.compare(o1.getCoordinates()[currentDim],
-            o2.getCoordinates()[currentDim]);
+      public List<T> apply(int i) {
+        NeighborHeap<T> heap = new NeighborHeap<>(nn);
+        collectNearest(targets[i], heap, null, SearchLimits.exact());
+        return heap.drainSorted();
       }
     });
+  }
 
-    if (nodeList.size() == 0) {
-      return null;
-    } else if (nodeList.size() == 1) {
-      return nodeList.get(0);
+  @Override
+  public List<T> radiusSearch(double r, T target1)
+      throws IllegalArgumentException {
+    if (r < 0) {
+      throw new IllegalArgumentException(
+          "radius must be an integer greater than 0.");
     } else {
-      // next dimension
-      int nextDim;
-      if (currentDim == this.k) {
-        nextDim = 0;
-      } else {
-        nextDim = currentDim + 1;
-      }
+      NeighborHeap<T> heap = new NeighborHeap<>(Integer.MAX_VALUE);
+      collectRadius(target1.getCoordinates(), r, heap, null);
+      return heap.drainSorted();
+    }
+  }
 
-      // median
-      int listSize = nodeList.size();
-      KDNode median = nodeList.get(listSize / 2);
+  /**
+   * Axis-aligned range search: every KDable inside the box [min, max],
+   * bounds included, in no particular order.
+   *
+   * @param min
+   *          - the lowest corner of the box.
+   * @param max
+   *          - the highest corner of the box.
+   * @return - a lazy stream of the KDables in the box.
+   */
+  Stream<T> rangeSearch(double[] min, double[] max)
+      throws IllegalArgumentException {
+    return rangeSearch(min, max, null);
+  }
 
-      // less than list
-      List<KDNode> l = new LinkedList<>();
-      for (int i = 0; i < (listSize / 2); i++) {
-        l.add(nodeList.get(i));
-      }
-      // greater than list
-      List<KDNode> g = new LinkedList<>();
-      for (int i = ((listSize / 2) + 1); i < listSize; i++) {
-        g.add(nodeList.get(i));
-      }
-      median.rightChild = buildTree(g, nextDim);
-      median.leftChild = buildTree(l, nextDim);
-      return median;
+  /**
+   * Axis-aligned range search. The tree is walked as the stream is consumed,
+   * so nothing is buffered however large the box; subtrees whose bounding
+   * region misses the box are skipped, and those whose region lies inside it
+   * are streamed without testing their points. Not supported by trees whose
+   * metric moves the coordinates.
+   *
+   * @param min
+   *          - the lowest corner of the box.
+   * @param max
+   *          - the highest corner of the box.
+   * @param deleted
+   *          - slots to leave out of the results, or null for none. It must
+   *          not change while the stream is consumed.
+   * @return - a lazy stream of the KDables in the box.
+   */
+  Stream<T> rangeSearch(double[] min, double[] max, BitSet deleted)
+      throws IllegalArgumentException {
+    if (!metric.keepsCoordinates()) {
+      throw new UnsupportedOperationException(
+          "Box queries need a metric that keeps coordinates");
     }
+    checkDims(min);
+    checkDims(max);
+    return StreamSupport.stream(new RangeSpliterator(min, max, deleted),
+        false);
   }
 
   /**
-   * A subclass representing the KDNodes of the tree.
+   * Offers the points of this tree to a bounded heap, keyed on metric keys,
+   * pruning every subtree that cannot beat the heap's threshold.
    *
-   * @author maxmines
+   * @param target
+   *          - the coordinates of the target point.
+   * @param heap
+   *          - the heap of the best candidates so far; its bound is k.
+   * @param deleted
+   *          - slots to leave out of the results, or null for none.
+   * @param limits
+   *          - the approximation factor and visit budget of this query.
+   */
+  void collectNearest(double[] target, NeighborHeap<T> heap, BitSet deleted,
+      SearchLimits limits) {
+    checkDims(target);
+    new Search(metric.prepare(target), heap, deleted, limits).nearest(0,
+        kdables.size());
+  }
+
+  /**
+   * Offers every point of this tree within a radius of the target to a heap,
+   * keyed on metric keys.
    *
+   * @param target
+   *          - the coordinates of the target point.
+   * @param r
+   *          - the radius.
+   * @param heap
+   *          - the heap collecting results.
+   * @param deleted
+   *          - slots to leave out of the results, or null for none.
+   */
+  void collectRadius(double[] target, double r, NeighborHeap<T> heap,
+      BitSet deleted) {
+    checkDims(target);
+    new Search(metric.prepare(target), heap, deleted, SearchLimits.exact())
+        .radius(0, kdables.size(), metric.toKey(r));
+  }
+
+  /**
+   * Finds the slot holding a given KDable: one at exactly its coordinates
+   * that equals it.
    *
+   * @param kdable
+   *          - the KDable to look for.
+   * @param deleted
+   *          - slots to skip, or null for none.
+   * @return - the slot, or -1 if the tree doesn't hold it.
+   */
+  int find(T kdable, BitSet deleted) {
+    double[] target = kdable.getCoordinates();
+    checkDims(target);
+    return new Search(metric.prepare(target), null, deleted,
+        SearchLimits.exact()).find(0, kdables.size(), kdable);
+  }
+
+  private void checkDims(double[] target) {
+    if (target.length != dims) {
+      throw new IllegalArgumentException(
+          "Target must have " + dims + " dimensions");
+    }
+  }
+
+  /**
+   * The per-query state of a search. Every query makes its own, and the tree
+   * itself is never written after construction, so one tree can serve any
+   * number of concurrent queries without locking.
    */
-  public class KDNode implements Comparable<KDNode> {
-    private T kdable;
-    private KDNode rightChild = null;
-    private KDNode leftChild = null;
+  private final class Search {
+    private final double[] target;
+    private final NeighborHeap<T> heap;
+    private final BitSet deleted;
+    private final SearchLimits limits;
+    // keys of the bucket being scanned
+    private double[] bucketKeys = new double[DEFAULT_BUCKET_SIZE];
 
     /**
-     * Constructor for KDNode class.
+     * Constructor for Search.
      *
-     * @param kdable
-     *          - a kdable object
+     * @param target
+     *          - the coordinates of the target point, prepared.
+     * @param heap
+     *          - where candidates are offered.
+     * @param deleted
+     *          - slots never to offer, or null for none.
+     * @param limits
+     *          - limits on how far a nearest neighbor search goes.
      */
-    KDNode(T kdable) {
-      this.kdable = kdable;
+    Search(double[] target, NeighborHeap<T> heap, BitSet deleted,
+        SearchLimits limits) {
+      this.target = target;
+      this.heap = heap;
+      this.deleted = deleted;
+      this.limits = limits;
+    }
+
+    private boolean isDeleted(int slot) {
+      return deleted != null && deleted.get(slot);
     }
 
     /**
-     * Gets coordinates of this node through the kdable.
+     * Metric key of the distance between the target and the point in a given
+     * slot.
      *
-     * @return a double[] representing the coordinates of this node.
+     * @param slot
+     *          - the slot in the tree.
+     * @return - the key.
      */
-    public double[] getCoordinates() {
-      return this.kdable.getCoordinates();
+    private double distanceKey(int slot) {
+      double key = 0;
+      if (euclidean) {
+        for (int d = 0; d < dims; d++) {
+          double diff = target[d] - coords[d].get(slot);
+          key += diff * diff;
+        }
+      } else {
+        for (int d = 0; d < dims; d++) {
+          key = metric.accumulate(key, target[d] - coords[d].get(slot));
+        }
+      }
+      return key;
     }
 
     /**
-     * Returns the associated kdable. For testing.
+     * Computes the keys of the distances from the target to every point of
+     * the bucket [lo, hi) into bucketKeys, one dimension at a time so each
+     * pass is a straight loop over a column.
      *
-     * @return this.kdable.
+     * @param lo
+     *          - first slot of the bucket.
+     * @param hi
+     *          - one past the last slot of the bucket.
+     * @return - the keys, indexed from lo.
      */
-    public T getKDable() {
-      return this.kdable;
+    private double[] scanBucket(int lo, int hi) {
+      int n = hi - lo;
+      if (bucketKeys.length < n) {
+        bucketKeys = new double[n];
+      }
+      double[] acc = bucketKeys;
+      Arrays.fill(acc, 0, n, 0);
+      for (int d = 0; d < dims; d++) {
+        double t = target[d];
+        if (!euclidean) {
+          DoubleBuffer column = coords[d];
+          for (int i = 0; i < n; i++) {
+            acc[i] = metric.accumulate(acc[i], t - column.get(lo + i));
+          }
+        } else if (columns != null) {
+          double[] column = columns[d];
+          for (int i = 0; i < n; i++) {
+            double diff = t - column[lo + i];
+            acc[i] += diff * diff;
+          }
+        } else {
+          DoubleBuffer column = coords[d];
+          for (int i = 0; i < n; i++) {
+            double diff = t - column.get(lo + i);
+            acc[i] += diff * diff;
+          }
+        }
+      }
+      return acc;
     }
 
     /**
-     * Returns the right child. For testing.
+     * Recursive nearest neighbor search over the slots [lo, hi). Goes down the
+     * side of the target first, then only into the far side when the
+     * splitting plane is closer than the current k-th candidate (by the
+     * approximation factor of the limits), and stops once the limits' visit
+     * budget is spent.
      *
-     * @return - this.rightChild
+     * @param lo
+     *          - first slot of the current subtree
+     * @param hi
+     *          - one past the last slot of the current subtree
      */
-    public KDNode getRight() {
-      return this.rightChild;
+    void nearest(int lo, int hi) {
+      if (hi <= lo || !limits.visit()) {
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      int dim = splitDims.get(mid);
+      if (dim == LEAF) {
+        double[] bucket = scanBucket(lo, hi);
+        for (int i = 0; i < hi - lo; i++) {
+          if (bucket[i] < heap.threshold() && !isDeleted(lo + i)) {
+            heap.offer(kdables.get(lo + i), bucket[i]);
+          }
+        }
+        return;
+      }
+      double key = distanceKey(mid);
+      if (key < heap.threshold() && !isDeleted(mid)) {
+        heap.offer(kdables.get(mid), key);
+      }
+
+      double currentDimComparison = target[dim] - coords[dim].get(mid);
+      if (currentDimComparison <= 0) {
+        nearest(lo, mid);
+      } else {
+        nearest(mid + 1, hi);
+      }
+
+      // go both sides
+      if (limits.shouldVisit(metric.planeKey(currentDimComparison),
+          heap.threshold(), metric)) {
+        if (currentDimComparison <= 0) {
+          nearest(mid + 1, hi);
+        } else {
+          nearest(lo, mid);
+        }
+      }
     }
 
     /**
-     * Returns the left child. For testing.
+     * Recursive radius search over the slots [lo, hi).
      *
-     * @return - this.leftChild
+     * @param lo
+     *          - first slot of the current subtree
+     * @param hi
+     *          - one past the last slot of the current subtree
+     * @param radiusKey
+     *          - the key of the radius.
      */
-    public KDNode getLeft() {
-      return this.leftChild;
-    }
+    void radius(int lo, int hi, double radiusKey) {
+      if (hi <= lo) {
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      int dim = splitDims.get(mid);
+      if (dim == LEAF) {
+        double[] bucket = scanBucket(lo, hi);
+        for (int i = 0; i < hi - lo; i++) {
+          if (bucket[i] <= radiusKey && !isDeleted(lo + i)) {
+            heap.offer(kdables.get(lo + i), bucket[i]);
+          }
+        }
+        return;
+      }
+      double key = distanceKey(mid);
+      if (key <= radiusKey && !isDeleted(mid)) {
+        heap.offer(kdables.get(mid), key);
+      }
 
-    @Override
-    public int compareTo(KDNode other) {
-      return Double.compare(kdable.euclideanDistance(target),
-          other.kdable.euclideanDistance(target));
+      double oneDDistance = target[dim] - coords[dim].get(mid);
+      if (oneDDistance <= 0) {
+        radius(lo, mid, radiusKey);
+      } else {
+        radius(mid + 1, hi, radiusKey);
+      }
+
+      if (metric.planeKey(oneDDistance) <= radiusKey) {
+        if (oneDDistance <= 0) {
+          radius(mid + 1, hi, radiusKey);
+        } else {
+          radius(lo, mid, radiusKey);
+        }
+      }
     }
 
-    @Override
-    public String toString() {
-      return this.kdable.toString();
+    /**
+     * Recursive exact match over the slots [lo, hi). Points equal to the
+     * median on the split dimension may be on either side of it, so ties go
+     * down both.
+     *
+     * @param lo
+     *          - first slot of the current subtree
+     * @param hi
+     *          - one past the last slot of the current subtree
+     * @param kdable
+     *          - the KDable to look for.
+     * @return - its slot, or -1.
+     */
+    int find(int lo, int hi, T kdable) {
+      if (hi <= lo) {
+        return -1;
+      }
+      int mid = (lo + hi) >>> 1;
+      int dim = splitDims.get(mid);
+      if (dim == LEAF) {
+        double[] bucket = scanBucket(lo, hi);
+        for (int i = 0; i < hi - lo; i++) {
+          if (bucket[i] == 0 && !isDeleted(lo + i)
+              && kdable.equals(kdables.get(lo + i))) {
+            return lo + i;
+          }
+        }
+        return -1;
+      }
+      if (distanceKey(mid) == 0 && !isDeleted(mid)
+          && kdable.equals(kdables.get(mid))) {
+        return mid;
+      }
+      double diff = target[dim] - coords[dim].get(mid);
+      int found = -1;
+      if (diff <= 0) {
+        found = find(lo, mid, kdable);
+      }
+      if (found < 0 && diff >= 0) {
+        found = find(mid + 1, hi, kdable);
+      }
+      return found;
     }
   }
 
-  List<T> nearestNeighbor(T target1, int nn) throws IllegalArgumentException {
-    if (nn < 1) {
-      throw new IllegalArgumentException("K must be at least 1");
-    } else {
-
-      this.neighbors = nn;
-      this.target = target1;
-
-      PriorityQueue<KDNode> pq = nearestNeighborRecur(target1, this.root, 0,
-          new PriorityQueue<>(Collections.reverseOrder()));
-      List<T> toReturn = new LinkedList<>();
-
-      while (!(pq.isEmpty())) {
-        toReturn.add(pq.poll().kdable);
-      }
-      return reverse(toReturn);
+  /**
+   * A subtree still to be walked by a range search, with its bounding region.
+   */
+  private static final class Region {
+    private final int lo;
+    private final int hi;
+    private final double[] lower;
+    private final double[] upper;
+
+    Region(int lo, int hi, double[] lower, double[] upper) {
+      this.lo = lo;
+      this.hi = hi;
+      this.lower = lower;
+      this.upper = upper;
     }
   }
 
   /**
-   * This method is used by nearestNeighbor to recur down the tree. It does most
-   * of the computation of nearest neighbor method.
-   *
-   * @param target
-   *          - a double[], the coordinates of the target point
-   * @param currentNode
-   *          - current node being evaluated
-   * @param depth
-   *          - the current depth to be used to compare certain coordinates
-   * @param pq
-   *          - the priority queue of top nodes so far
-   * @return - a priority queue with the results of the search.
+   * The per-query state of a range search: a stack of subtrees still to be
+   * walked, and a run of slots currently being streamed out.
    */
-  private PriorityQueue<KDNode> nearestNeighborRecur(T target1,
-      KDNode currentNode, int depth, PriorityQueue<KDNode> pq) {
-    if (currentNode != null) {
-      if (pq.size() < this.neighbors) {
-        pq.add(currentNode);
-      } else if (pq.peek().compareTo(currentNode) > 0) {
-        pq.poll();
-        pq.add(currentNode);
-      }
-
-      // calculating depth to feed to recursion
-      int nextDepth;
-      if (depth == this.k) {
-        nextDepth = 0;
-      } else {
-        nextDepth = depth + 1;
-      }
+  private final class RangeSpliterator
+      extends Spliterators.AbstractSpliterator<T> {
+    private final double[] min;
+    private final double[] max;
+    private final BitSet deleted;
+    private final Deque<Region> pending = new ArrayDeque<>();
+    private int runPos = 0;
+    private int runEnd = 0;
+    // whether the points of the run still have to be tested against the box
+    private boolean runChecked = false;
+
+    RangeSpliterator(double[] min, double[] max, BitSet deleted) {
+      super(Long.MAX_VALUE, Spliterator.NONNULL);
+      this.min = min;
+      this.max = max;
+      this.deleted = deleted;
+      double[] lower = new double[dims];
+      double[] upper = new double[dims];
+      Arrays.fill(lower, Double.NEGATIVE_INFINITY);
+      Arrays.fill(upper, Double.POSITIVE_INFINITY);
+      pending.push(new Region(0, kdables.size(), lower, upper));
+    }
 
-      double currentDimComparison = target1.getCoordinates()[depth]
-          - currentNode.getCoordinates()[depth];
-      boolean wentLeft = true;
-      PriorityQueue<KDNode> returnedFromRecur;
-      if (currentDimComparison <= 0) {
-        returnedFromRecur = nearestNeighborRecur(target1, currentNode.leftChild,
-            nextDepth, pq);
-      } else {
-        returnedFromRecur = nearestNeighborRecur(target1,
-            currentNode.rightChild, nextDepth, pq);
-        wentLeft = false;
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      while (true) {
+        while (runPos < runEnd) {
+          int slot = runPos++;
+          if ((deleted == null || !deleted.get(slot))
+              && (!runChecked || inBox(slot))) {
+            action.accept(kdables.get(slot));
+            return true;
+          }
+        }
+        Region region = pending.poll();
+        if (region == null) {
+          return false;
+        }
+        expand(region);
       }
+    }
 
-      double euclidToFar = pq.peek().kdable.euclideanDistance(target);
-      boolean rootAndNotEnough = false;
-      if ((currentNode == root)
-          && (returnedFromRecur.size() < this.neighbors)) {
-        rootAndNotEnough = true;
+    /**
+     * Starts a run for a subtree: all of it if its region is inside the box,
+     * all of it tested if it is a bucket, and otherwise just its median,
+     * pushing whichever children overlap the box.
+     *
+     * @param region
+     *          - the subtree.
+     */
+    private void expand(Region region) {
+      int lo = region.lo;
+      int hi = region.hi;
+      if (hi <= lo) {
+        return;
+      }
+      if (contains(region)) {
+        startRun(lo, hi, false);
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      int dim = splitDims.get(mid);
+      if (dim == LEAF) {
+        startRun(lo, hi, true);
+        return;
+      }
+      double split = coords[dim].get(mid);
+      if (max[dim] >= split) {
+        double[] lower = region.lower.clone();
+        lower[dim] = split;
+        pending.push(new Region(mid + 1, hi, lower, region.upper));
       }
+      if (min[dim] <= split) {
+        double[] upper = region.upper.clone();
+        upper[dim] = split;
+        pending.push(new Region(lo, mid, region.lower, upper));
+      }
+      startRun(mid, mid + 1, true);
+    }
 
-      // go both sides
-      if ((Math.abs(currentDimComparison) < euclidToFar)
-          || (rootAndNotEnough)) {
-        if (wentLeft) {
-          returnedFromRecur = nearestNeighborRecur(target,
-              currentNode.rightChild, nextDepth, returnedFromRecur);
-        } else {
-          returnedFromRecur = nearestNeighborRecur(target,
-              currentNode.leftChild, nextDepth, returnedFromRecur);
+    private void startRun(int from, int to, boolean checked) {
+      runPos = from;
+      runEnd = to;
+      runChecked = checked;
+    }
+
+    private boolean contains(Region region) {
+      for (int d = 0; d < dims; d++) {
+        if (region.lower[d] < min[d] || region.upper[d] > max[d]) {
+          return false;
         }
       }
-      return returnedFromRecur;
-    } else {
-      return pq;
+      return true;
     }
-  }
 
-  List<T> radiusSearch(double r, T target1) throws IllegalArgumentException {
-    if (r < 0) {
-      throw new IllegalArgumentException(
-          "radius must be an integer greater than 0.");
-    } else {
-      this.target = target1;
-      PriorityQueue<KDNode> pq = radiusSearchRecur(this.root, 0,
-          new PriorityQueue<KDNode>(), r);
-      List<T> toReturn = new LinkedList<>();
-      while (!pq.isEmpty()) {
-        T kda = pq.poll().kdable;
-        toReturn.add(kda);
+    private boolean inBox(int slot) {
+      for (int d = 0; d < dims; d++) {
+        double c = coords[d].get(slot);
+        if (c < min[d] || c > max[d]) {
+          return false;
+        }
       }
-      return toReturn;
+      return true;
     }
   }
 
-  private PriorityQueue<KDNode> radiusSearchRecur(KDNode currentNode, int depth,
-      PriorityQueue<KDNode> pq, double radius) {
-    if (currentNode == null) {
-      return pq;
-    } else if (this.target.euclideanDistance(currentNode.kdable) <= radius) {
-      pq.add(currentNode);
-    }
+  /**
+   * Getter for the number of KDables in the tree.
+   *
+   * @return - the size of the tree.
+   */
+  @Override
+  public int size() {
+    return this.kdables.size();
+  }
 
-    // calculating depth to feed to recursion
-    int nextDepth;
-    if (depth == this.k) {
-      nextDepth = 0;
-    } else {
-      nextDepth = depth + 1;
-    }
+  /**
+   * Getter for the number of dimensions.
+   *
+   * @return - the dimensions of every KDable in the tree.
+   */
+  @Override
+  public int dimensions() {
+    return this.dims;
+  }
 
-    boolean wentLeft = true;
-    double oneDDistance = (target.getCoordinates()[depth]
-        - currentNode.getCoordinates()[depth]);
-    if (oneDDistance <= 0) {
-      pq = radiusSearchRecur(currentNode.leftChild, nextDepth, pq, radius);
-    } else {
-      wentLeft = false;
-      pq = radiusSearchRecur(currentNode.rightChild, nextDepth, pq, radius);
-    }
+  /**
+   * Getter for the metric.
+   *
+   * @return - the metric the tree searches under.
+   */
+  Metric metric() {
+    return this.metric;
+  }
 
-    if (Math.abs(oneDDistance) <= radius) {
-      if (wentLeft) {
-        pq = radiusSearchRecur(currentNode.rightChild, nextDepth, pq, radius);
-      } else {
-        pq = radiusSearchRecur(currentNode.leftChild, nextDepth, pq, radius);
-      }
-    }
-    return pq;
+  /**
+   * Getter for the KDables, used to write catalogs.
+   *
+   * @return - the KDables, in tree order.
+   */
+  List<T> kdablesInTreeOrder() {
+    return Collections.unmodifiableList(this.kdables);
+  }
+
+  /**
+   * Getter for one coordinate column, used to write catalogs.
+   *
+   * @param dim
+   *          - the dimension.
+   * @return - a read only view of the column, in tree order.
+   */
+  DoubleBuffer coordinateColumn(int dim) {
+    return this.coords[dim].asReadOnlyBuffer();
   }
 
   /**
-   * Getter for root, used to test.
+   * Getter for the split dimensions, used to write catalogs.
    *
-   * @return - this.root.
+   * @return - a read only view of the split dimension of each slot, LEAF
+   *         for slots in leaf buckets.
    */
-  KDNode getRoot() {
-    return this.root;
+  ShortBuffer splitDimensions() {
+    return this.splitDims.asReadOnlyBuffer();
   }
 
 }
@@ -0,0 +1,116 @@
+package edu.brown.cs.mmines.stars;
+
+/**
+ * An interface for the distance metrics indexes can search under. Searches
+ * don't compare distances themselves but keys, any quantity that grows with
+ * the distance and is cheaper to compute (the squared distance for L2), built
+ * up one coordinate difference at a time. A KDTree also needs a lower bound on
+ * the key of any point on the far side of a splitting plane, from the
+ * distance to the plane along its axis.
+ *
+ * @author maxmines
+ *
+ */
+public interface Metric {
+
+  /**
+   * Maps coordinates into the space the metric is computed in, once per
+   * point when an index is built and once per query target.
+   *
+   * @param coordinates
+   *          - the coordinates of a point.
+   * @return - the coordinates to index and compare; the same array if the
+   *         metric uses them as they are.
+   */
+  double[] prepare(double[] coordinates);
+
+  /**
+   * Whether prepare leaves coordinates as they are, so that boxes in the
+   * original coordinates still mean the same thing in the index.
+   *
+   * @return - true if prepare is the identity.
+   */
+  boolean keepsCoordinates();
+
+  /**
+   * Adds the difference along one more axis to a partial key. Starting from
+   * 0 and accumulating the difference on every axis gives the key of the
+   * distance between two prepared points.
+   *
+   * @param key
+   *          - the key so far.
+   * @param diff
+   *          - the difference between the points on one axis.
+   * @return - the new key.
+   */
+  double accumulate(double key, double diff);
+
+  /**
+   * Lower bound on the key of any point on the other side of an axis
+   * aligned plane.
+   *
+   * @param diff
+   *          - the distance from the target to the plane along its axis.
+   * @return - a key no greater than that of any point beyond the plane.
+   */
+  double planeKey(double diff);
+
+  /**
+   * Converts a distance to a key.
+   *
+   * @param distance
+   *          - the distance.
+   * @return - its key.
+   */
+  double toKey(double distance);
+
+  /**
+   * Converts a key back to a distance.
+   *
+   * @param key
+   *          - the key.
+   * @return - its distance.
+   */
+  double toDistance(double key);
+
+  /**
+   * The key of a distance scaled by a factor, given the key of the distance.
+   *
+   * @param key
+   *          - the key of a distance.
+   * @param factor
+   *          - the factor, at least 1.
+   * @return - the key of factor times the distance, or no more than it.
+   */
+  double scaleKey(double key, double factor);
+
+  /**
+   * The key of the distance between two points.
+   *
+   * @param a
+   *          - one point, prepared.
+   * @param b
+   *          - another point of the same dimensions, prepared.
+   * @return - the key.
+   */
+  default double key(double[] a, double[] b) {
+    double key = 0;
+    for (int d = 0; d < a.length; d++) {
+      key = accumulate(key, a[d] - b[d]);
+    }
+    return key;
+  }
+
+  /**
+   * The distance between two points.
+   *
+   * @param a
+   *          - one point.
+   * @param b
+   *          - another point of the same dimensions.
+   * @return - the distance under this metric.
+   */
+  default double distance(double[] a, double[] b) {
+    return toDistance(key(prepare(a), prepare(b)));
+  }
+}
@@ -0,0 +1,147 @@
+package edu.brown.cs.mmines.stars;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A max-heap of search candidates keyed on (squared) distance, kept in
+ * parallel primitive arrays. With a bound of k it keeps the k closest
+ * candidates offered to it; with Integer.MAX_VALUE as bound it keeps all of
+ * them. Every query makes its own heap, so none of this state is shared
+ * between concurrent searches.
+ *
+ * @author maxmines
+ *
+ * @param <T>
+ *          - the type of the candidates.
+ */
+final class NeighborHeap<T> {
+  private static final int DEFAULT_CAPACITY = 16;
+  private final int bound;
+  private Object[] items;
+  private double[] keys;
+  private int size = 0;
+
+  /**
+   * Constructor for NeighborHeap.
+   *
+   * @param bound
+   *          - the number of candidates to keep, at least 1.
+   */
+  NeighborHeap(int bound) {
+    this.bound = bound;
+    int capacity = Math.min(bound, DEFAULT_CAPACITY);
+    this.items = new Object[capacity];
+    this.keys = new double[capacity];
+  }
+
+  /**
+   * Number of candidates currently held.
+   *
+   * @return - the size.
+   */
+  int size() {
+    return this.size;
+  }
+
+  /**
+   * Whether the heap holds as many candidates as its bound.
+   *
+   * @return - true if full.
+   */
+  boolean isFull() {
+    return this.size >= this.bound;
+  }
+
+  /**
+   * The key a new candidate has to beat to get in: the largest key held once
+   * the heap is full, infinity before.
+   *
+   * @return - the current threshold.
+   */
+  double threshold() {
+    if (size < bound) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return keys[0];
+  }
+
+  /**
+   * Offers a candidate. It is kept if the heap is not full yet, or if it is
+   * closer than the current farthest candidate, which is then dropped.
+   *
+   * @param item
+   *          - the candidate.
+   * @param key
+   *          - its distance key.
+   */
+  void offer(T item, double key) {
+    if (size < bound) {
+      if (size == items.length) {
+        int capacity = (int) Math.min((long) bound, 2L * items.length);
+        items = Arrays.copyOf(items, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+      }
+      siftUp(size, item, key);
+      size++;
+    } else if (key < keys[0]) {
+      siftDown(0, item, key);
+    }
+  }
+
+  private void siftUp(int pos, Object item, double key) {
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (keys[parent] >= key) {
+        break;
+      }
+      items[pos] = items[parent];
+      keys[pos] = keys[parent];
+      pos = parent;
+    }
+    items[pos] = item;
+    keys[pos] = key;
+  }
+
+  private void siftDown(int pos, Object item, double key) {
+    int half = size >>> 1;
+    while (pos < half) {
+      int child = 2 * pos + 1;
+      int right = child + 1;
+      if (right < size && keys[right] > keys[child]) {
+        child = right;
+      }
+      if (key >= keys[child]) {
+        break;
+      }
+      items[pos] = items[child];
+      keys[pos] = keys[child];
+      pos = child;
+    }
+    items[pos] = item;
+    keys[pos] = key;
+  }
+
+  /**
+   * Empties the heap into a list, closest candidate first.
+   *
+   * @return - the candidates sorted by ascending key.
+   */
+  List<T> drainSorted() {
+    List<T> toReturn = new ArrayList<>(size);
+    while (size > 0) {
+      @SuppressWarnings("unchecked")
+      T top = (T) items[0];
+      toReturn.add(top);
+      size--;
+      if (size > 0) {
+        siftDown(0, items[size], keys[size]);
+      }
+      items[size] = null;
+    }
+    Collections.reverse(toReturn);
+    return toReturn;
+  }
+}
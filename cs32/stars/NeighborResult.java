@@ -0,0 +1,58 @@
+package edu.brown.cs.mmines.stars;
+
+import java.util.List;
+
+/**
+ * The answer to a nearest neighbor search that may have been approximate.
+ *
+ * @author maxmines
+ *
+ * @param <T>
+ *          - a KDable object type.
+ */
+public final class NeighborResult<T> {
+  private final List<T> neighbors;
+  private final boolean exact;
+  private final int visited;
+
+  /**
+   * Constructor for NeighborResult.
+   *
+   * @param neighbors
+   *          - the neighbors found, nearest first.
+   * @param limits
+   *          - the limits the search ran under.
+   */
+  NeighborResult(List<T> neighbors, SearchLimits limits) {
+    this.neighbors = neighbors;
+    this.exact = limits.isExact();
+    this.visited = limits.getVisited();
+  }
+
+  /**
+   * Getter for the neighbors.
+   *
+   * @return - the neighbors found, nearest first.
+   */
+  public List<T> getNeighbors() {
+    return this.neighbors;
+  }
+
+  /**
+   * Whether these are guaranteed to be the true nearest neighbors.
+   *
+   * @return - true if the search skipped nothing.
+   */
+  public boolean isExact() {
+    return this.exact;
+  }
+
+  /**
+   * Getter for the number of tree nodes the search visited.
+   *
+   * @return - the visit count.
+   */
+  public int getVisited() {
+    return this.visited;
+  }
+}
@@ -0,0 +1,104 @@
+package edu.brown.cs.mmines.stars;
+
+/**
+ * The limits of one approximate nearest neighbor search, and what they cost
+ * it. With an approximation factor epsilon, a subtree is only searched if it
+ * could hold a point more than (1 + epsilon) times closer than the current
+ * k-th candidate, so every result is within (1 + epsilon) of the true one.
+ * With a maximum number of visited nodes, the search stops there. Either way
+ * the search records whether it skipped anything an exact search would have
+ * visited; if not, its answer is exact.
+ *
+ * Like NeighborHeap, one of these belongs to a single query.
+ *
+ * @author maxmines
+ *
+ */
+final class SearchLimits {
+  private final double epsilon;
+  private final int maxVisited;
+  private int visited = 0;
+  private boolean exact = true;
+
+  /**
+   * Constructor for SearchLimits.
+   *
+   * @param epsilon
+   *          - the approximation factor, 0 for exact pruning.
+   * @param maxVisited
+   *          - the most nodes to visit, 0 for no limit.
+   */
+  SearchLimits(double epsilon, int maxVisited) {
+    if (epsilon < 0 || maxVisited < 0) {
+      throw new IllegalArgumentException(
+          "epsilon and max visited must be non-negative");
+    }
+    this.epsilon = epsilon;
+    this.maxVisited = maxVisited;
+  }
+
+  /**
+   * Limits of an exact search.
+   *
+   * @return - new limits that never cut a search short.
+   */
+  static SearchLimits exact() {
+    return new SearchLimits(0, 0);
+  }
+
+  /**
+   * Counts a visit to a node, if the budget allows one.
+   *
+   * @return - true if the node may be visited.
+   */
+  boolean visit() {
+    if (maxVisited > 0 && visited >= maxVisited) {
+      exact = false;
+      return false;
+    }
+    visited++;
+    return true;
+  }
+
+  /**
+   * Whether to go into a subtree beyond a splitting plane, given the metric
+   * keys of the plane's lower bound and of the current k-th candidate.
+   *
+   * @param planeKey
+   *          - key of the lower bound on the distance beyond the plane.
+   * @param thresholdKey
+   *          - key of the distance to the k-th candidate, or infinity.
+   * @param metric
+   *          - the metric the keys belong to.
+   * @return - true if the subtree should be searched.
+   */
+  boolean shouldVisit(double planeKey, double thresholdKey, Metric metric) {
+    if (planeKey >= thresholdKey) {
+      return false;
+    }
+    if (epsilon > 0
+        && metric.scaleKey(planeKey, 1 + epsilon) >= thresholdKey) {
+      exact = false;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Whether the search skipped nothing an exact search would have visited.
+   *
+   * @return - true if the answer is exact.
+   */
+  boolean isExact() {
+    return this.exact;
+  }
+
+  /**
+   * Number of nodes the search visited.
+   *
+   * @return - the visit count.
+   */
+  int getVisited() {
+    return this.visited;
+  }
+}
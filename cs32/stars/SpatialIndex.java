@@ -0,0 +1,63 @@
+package edu.brown.cs.mmines.stars;
+
+import java.util.List;
+
+/**
+ * An interface for indexes over KDables that answer nearest neighbor and
+ * radius queries, so the code querying them doesn't have to care which kind
+ * of tree is underneath.
+ *
+ * @author maxmines
+ *
+ * @param <T>
+ *          - a KDable object type.
+ */
+public interface SpatialIndex<T extends KDable<T>> {
+
+  /**
+   * K nearest neighbors search.
+   *
+   * @param target
+   *          - the target.
+   * @param nn
+   *          - the number of neighbors, at least 1.
+   * @return - the nn KDables closest to the target, nearest first.
+   */
+  List<T> nearestNeighbor(T target, int nn);
+
+  /**
+   * Batch k nearest neighbors search.
+   *
+   * @param targets
+   *          - the coordinates of each target point.
+   * @param nn
+   *          - the number of neighbors per target, at least 1.
+   * @return - for each target, in order, its neighbors nearest first.
+   */
+  List<List<T>> nearestNeighbors(double[][] targets, int nn);
+
+  /**
+   * Radius search.
+   *
+   * @param r
+   *          - the radius, non-negative.
+   * @param target
+   *          - the target.
+   * @return - every KDable within r of the target, nearest first.
+   */
+  List<T> radiusSearch(double r, T target);
+
+  /**
+   * Number of KDables in the index.
+   *
+   * @return - the size.
+   */
+  int size();
+
+  /**
+   * Number of dimensions of every KDable in the index.
+   *
+   * @return - the dimensions.
+   */
+  int dimensions();
+}
@@ -0,0 +1,153 @@
+package edu.brown.cs.mmines.stars;
+
+/**
+ * The metrics indexes support out of the box.
+ *
+ * @author maxmines
+ *
+ */
+public enum StandardMetric implements Metric {
+  /**
+   * Straight line distance. Keys are squared distances, so no square root is
+   * taken during a search.
+   */
+  EUCLIDEAN {
+    @Override
+    public double accumulate(double key, double diff) {
+      return key + diff * diff;
+    }
+
+    @Override
+    public double planeKey(double diff) {
+      return diff * diff;
+    }
+
+    @Override
+    public double toKey(double distance) {
+      return distance * distance;
+    }
+
+    @Override
+    public double toDistance(double key) {
+      return Math.sqrt(key);
+    }
+
+    @Override
+    public double scaleKey(double key, double factor) {
+      return key * factor * factor;
+    }
+  },
+
+  /**
+   * Manhattan (L1) distance, the sum of the differences on each axis.
+   */
+  MANHATTAN {
+    @Override
+    public double accumulate(double key, double diff) {
+      return key + Math.abs(diff);
+    }
+  },
+
+  /**
+   * Chebyshev (L-infinity) distance, the largest difference on any axis.
+   */
+  CHEBYSHEV {
+    @Override
+    public double accumulate(double key, double diff) {
+      return Math.max(key, Math.abs(diff));
+    }
+  },
+
+  /**
+   * Angular distance, in radians: the angle between the directions of two
+   * points as seen from the origin, the great circle distance for sky
+   * coordinates. Points are prepared by scaling them onto the unit sphere,
+   * where the straight line (chord) distance grows with the angle, so keys
+   * are squared chords and prune like EUCLIDEAN ones. The origin itself has
+   * no direction and is left where it is.
+   */
+  ANGULAR {
+    @Override
+    public double[] prepare(double[] coordinates) {
+      double norm = 0;
+      for (double c : coordinates) {
+        norm += c * c;
+      }
+      if (norm == 0) {
+        return coordinates;
+      }
+      norm = Math.sqrt(norm);
+      double[] unit = new double[coordinates.length];
+      for (int d = 0; d < unit.length; d++) {
+        unit[d] = coordinates[d] / norm;
+      }
+      return unit;
+    }
+
+    @Override
+    public boolean keepsCoordinates() {
+      return false;
+    }
+
+    @Override
+    public double accumulate(double key, double diff) {
+      return key + diff * diff;
+    }
+
+    @Override
+    public double planeKey(double diff) {
+      return diff * diff;
+    }
+
+    @Override
+    public double toKey(double distance) {
+      if (distance >= Math.PI) {
+        return 4;
+      }
+      double chord = 2 * Math.sin(distance / 2);
+      return chord * chord;
+    }
+
+    @Override
+    public double toDistance(double key) {
+      return 2 * Math.asin(Math.min(1, Math.sqrt(key) / 2));
+    }
+
+    @Override
+    public double scaleKey(double key, double factor) {
+      return key * factor * factor;
+    }
+  };
+
+  // the L1 and L-infinity defaults: keys are the distances themselves
+
+  @Override
+  public double[] prepare(double[] coordinates) {
+    return coordinates;
+  }
+
+  @Override
+  public boolean keepsCoordinates() {
+    return true;
+  }
+
+  @Override
+  public double planeKey(double diff) {
+    return Math.abs(diff);
+  }
+
+  @Override
+  public double toKey(double distance) {
+    return distance;
+  }
+
+  @Override
+  public double toDistance(double key) {
+    return key;
+  }
+
+  @Override
+  public double scaleKey(double key, double factor) {
+    return key * factor;
+  }
+}
@@ -33,7 +33,16 @@ public class Star implements KDable<Star> {
   /**
    * Getter for this.id.
    *
-   * @return - the name as a string.
+   * @return - the id.
+   */
+  public int getId() {
+    return this.id;
+  }
+
+  /**
+   * Getter for the coordinates as a string.
+   *
+   * @return - the coordinates as a string.
    */
   public String getCoordsAsString() {
     String toReturn = "(";
@@ -46,10 +55,11 @@ public class Star implements KDable<Star> {
 
   @Override
   public double euclideanDistance(KDable<Star> p1) {
+    double[] other = p1.getCoordinates();
     double currentSum = 0;
     for (int i = 0; i < this.coordinates.length; i++) {
-      currentSum = currentSum
-          + Math.pow((this.coordinates[i] - p1.getCoordinates()[i]), 2);
+      double diff = this.coordinates[i] - other[i];
+      currentSum += diff * diff;
     }
     return Math.sqrt(currentSum);
   }
@@ -59,6 +69,25 @@ public class Star implements KDable<Star> {
     return this.coordinates;
   }
 
+  /**
+   * Stars are identified by their id.
+   */
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof Star)) {
+      return false;
+    }
+    return this.id == ((Star) other).id;
+  }
+
+  @Override
+  public int hashCode() {
+    return Integer.hashCode(this.id);
+  }
+
   @Override
   public String toString() {
     return Integer.toString(this.id);
@@ -0,0 +1,78 @@
+package edu.brown.cs.mmines.stars;
+
+import java.io.FileNotFoundException;
+import java.lang.reflect.MalformedParametersException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import edu.brown.cs.mmines.ApplicationInputs.CSVParser;
+
+/**
+ * Class for reading stars out of a CSV file with a streaming parse, building
+ * each Star straight from the parsed fields.
+ *
+ * @author maxmines
+ *
+ */
+final class StarCSVReader {
+  /**
+   * Header every stars CSV file must start with.
+   */
+  static final String HEADER = "StarID,ProperName,X,Y,Z";
+
+  private StarCSVReader() {
+    // not called
+  }
+
+  /**
+   * Reads the stars out of a CSV file.
+   *
+   * @param filePath
+   *          - path to a csv file with header StarID,ProperName,X,Y,Z.
+   * @return - the stars, in file order.
+   * @throws MalformedParametersException
+   *           - the header or a row is malformed.
+   * @throws FileNotFoundException
+   *           - trouble opening or reading file.
+   * @throws NumberFormatException
+   *           - an id or coordinate doesn't parse.
+   */
+  static List<Star> readStars(String filePath)
+      throws MalformedParametersException, FileNotFoundException,
+      NumberFormatException {
+    List<StarRows> chunks = CSVParser.parseFile(filePath, HEADER,
+        new Supplier<StarRows>() {
+          @Override
+          public StarRows get() {
+            return new StarRows();
+          }
+        });
+
+    int total = 0;
+    for (StarRows chunk : chunks) {
+      total += chunk.stars.size();
+    }
+    List<Star> stars = new ArrayList<>(total);
+    for (StarRows chunk : chunks) {
+      stars.addAll(chunk.stars);
+    }
+    return stars;
+  }
+
+  /**
+   * Collects the stars of one chunk of the file.
+   */
+  private static final class StarRows implements CSVParser.RowHandler {
+    private final List<Star> stars = new ArrayList<>();
+
+    @Override
+    public void row(CSVParser.Row row) {
+      double[] coords = new double[3];
+      coords[0] = row.doubleField(2);
+      coords[1] = row.doubleField(3);
+      coords[2] = row.doubleField(4);
+      stars.add(new Star(row.intField(0), row.stringField(1), coords));
+    }
+  }
+}
@@ -0,0 +1,474 @@
+package edu.brown.cs.mmines.stars;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Class for binary star catalogs, a columnar file holding a KDTree of stars
+ * already laid out in tree order. Opening a catalog maps its columns with
+ * FileChannel.map and queries them in place, so nothing but the named stars is
+ * copied onto the heap and the pages are shared by every process that maps the
+ * same file.
+ *
+ * A catalog can also serve as the snapshot of a CSV file: it then records
+ * the size and modification time the CSV had when it was built, and is only
+ * fresh while the CSV still has them.
+ *
+ * Layout, little endian, every column starting on an 8 byte boundary:
+ *
+ * <pre>
+ * int magic, int version, int count, int dims
+ * long source size, long source mtime (0 if not a snapshot)
+ * int[count]           star ids, in tree order
+ * double[count] * dims coordinates, one column per dimension
+ * short[count]         split dimension of each slot, -1 in leaf buckets
+ * int named, then per named star: int slot, int length, UTF-8 name
+ * </pre>
+ *
+ * Each column has to fit in one mapping, which limits a catalog to
+ * Integer.MAX_VALUE / 8 stars, one short of 2^28.
+ *
+ * A catalog is written to a new file that then replaces the old one, so a
+ * catalog that is mapped, by this process or any other, is never changed
+ * under its mappings.
+ *
+ * @author maxmines
+ *
+ */
+public final class StarCatalog {
+  /**
+   * First four bytes of every catalog, "STRC".
+   */
+  public static final int MAGIC = 0x53545243;
+  /**
+   * Suffix of the snapshot kept next to a stars CSV file.
+   */
+  public static final String SNAPSHOT_SUFFIX = ".snapshot";
+  // version 2 added leaf buckets, version 3 the source of snapshots; older
+  // catalogs still open
+  private static final int VERSION = 3;
+  private static final int OLDEST_VERSION = 1;
+  private static final int SOURCE_VERSION = 3;
+  private static final int HEADER_BYTES = 16;
+  private static final int SOURCE_BYTES = 16;
+  private static final int WRITE_BUFFER_BYTES = 1 << 16;
+  // so that a column of doubles fits in one mapping
+  private static final int MAX_STARS = Integer.MAX_VALUE / 8;
+
+  private final KDTree<Star> tree;
+  private final Map<String, Star> namedStars;
+
+  private StarCatalog(KDTree<Star> tree, Map<String, Star> namedStars) {
+    this.tree = tree;
+    this.namedStars = namedStars;
+  }
+
+  /**
+   * Getter for the tree, whose columns live in the mapped file.
+   *
+   * @return - the tree.
+   */
+  KDTree<Star> getTree() {
+    return this.tree;
+  }
+
+  /**
+   * Getter for the stars that have a proper name.
+   *
+   * @return - map of name to star.
+   */
+  Map<String, Star> getNamedStars() {
+    return Collections.unmodifiableMap(this.namedStars);
+  }
+
+  /**
+   * Checks whether a file starts with the catalog magic number.
+   *
+   * @param path
+   *          - the file to check.
+   * @return - true if the file looks like a catalog.
+   */
+  public static boolean isCatalog(String path) {
+    try (DataInputStream in = new DataInputStream(
+        new FileInputStream(path))) {
+      return Integer.reverseBytes(in.readInt()) == MAGIC;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether a file is a snapshot of a source file that is still
+   * fresh: the source has the same size and modification time as when the
+   * snapshot was written.
+   *
+   * @param path
+   *          - the snapshot file.
+   * @param sourcePath
+   *          - the file it should be a snapshot of.
+   * @return - true if the snapshot can be used instead of the source.
+   */
+  public static boolean isFreshSnapshot(String path, String sourcePath) {
+    File source = new File(sourcePath);
+    if (!source.isFile()) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new FileInputStream(path))) {
+      byte[] header = new byte[HEADER_BYTES + SOURCE_BYTES];
+      in.readFully(header);
+      ByteBuffer buffer = ByteBuffer.wrap(header)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.getInt() != MAGIC || buffer.getInt() < SOURCE_VERSION) {
+        return false;
+      }
+      buffer.position(HEADER_BYTES);
+      long size = buffer.getLong();
+      long mtime = buffer.getLong();
+      return size == source.length() && mtime == source.lastModified();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes a built tree out as a catalog.
+   *
+   * @param tree
+   *          - the tree to write.
+   * @param path
+   *          - the file to write to; replaced if it exists.
+   * @throws IOException
+   *           - if the file can't be written.
+   */
+  static void write(KDTree<Star> tree, String path) throws IOException {
+    write(tree, path, 0, 0);
+  }
+
+  /**
+   * Writes a built tree out as a snapshot of the file it was read from. The
+   * size and modification time of the source should be taken before it is
+   * read, so a change made while reading it leaves the snapshot stale.
+   *
+   * @param tree
+   *          - the tree to write.
+   * @param path
+   *          - the file to write to; replaced if it exists.
+   * @param sourceSize
+   *          - the size of the source file.
+   * @param sourceMtime
+   *          - the modification time of the source file.
+   * @throws IOException
+   *           - if the file can't be written.
+   */
+  static void write(KDTree<Star> tree, String path, long sourceSize,
+      long sourceMtime) throws IOException {
+    int count = tree.size();
+    int dims = tree.dimensions();
+    List<Star> stars = tree.kdablesInTreeOrder();
+    if (count > MAX_STARS) {
+      throw new IOException("too many stars for one catalog");
+    }
+
+    // written beside the old file and swapped in, since truncating a file
+    // that is mapped makes reads of the mapping fail
+    Path target = Paths.get(path).toAbsolutePath();
+    Path temp = Files.createFile(target.resolveSibling(target.getFileName()
+        + "." + Long.toHexString(System.nanoTime()) + ".tmp"));
+    try {
+      writeColumns(tree, stars, temp, sourceSize, sourceMtime);
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static void writeColumns(KDTree<Star> tree, List<Star> stars,
+      Path file, long sourceSize, long sourceMtime) throws IOException {
+    int count = tree.size();
+    int dims = tree.dimensions();
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+        FileChannel channel = raf.getChannel()) {
+      ColumnWriter out = new ColumnWriter(channel);
+      out.putInt(MAGIC);
+      out.putInt(VERSION);
+      out.putInt(count);
+      out.putInt(dims);
+      out.putLong(sourceSize);
+      out.putLong(sourceMtime);
+
+      for (Star s : stars) {
+        out.putInt(s.getId());
+      }
+      out.align();
+      for (int d = 0; d < dims; d++) {
+        DoubleBuffer column = tree.coordinateColumn(d);
+        for (int slot = 0; slot < count; slot++) {
+          out.putDouble(column.get(slot));
+        }
+      }
+      ShortBuffer splits = tree.splitDimensions();
+      for (int slot = 0; slot < count; slot++) {
+        out.putShort(splits.get(slot));
+      }
+      out.align();
+
+      int named = 0;
+      for (Star s : stars) {
+        if (!s.getName().equals("")) {
+          named++;
+        }
+      }
+      out.putInt(named);
+      for (int slot = 0; slot < count; slot++) {
+        String name = stars.get(slot).getName();
+        if (!name.equals("")) {
+          byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+          out.putInt(slot);
+          out.putInt(bytes.length);
+          out.putBytes(bytes);
+        }
+      }
+      out.flush();
+    }
+  }
+
+  /**
+   * Opens a catalog by mapping its columns into memory.
+   *
+   * @param path
+   *          - the catalog file.
+   * @return - the opened catalog.
+   * @throws IOException
+   *           - if the file can't be read or isn't a catalog.
+   */
+  static StarCatalog open(String path) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(path, "r");
+        FileChannel channel = raf.getChannel()) {
+      ByteBuffer header = map(channel, 0, HEADER_BYTES);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("not a star catalog");
+      }
+      int version = header.getInt();
+      if (version < OLDEST_VERSION || version > VERSION) {
+        throw new IOException("unsupported star catalog version");
+      }
+      long offset = HEADER_BYTES;
+      if (version >= SOURCE_VERSION) {
+        offset += SOURCE_BYTES;
+      }
+      int count = header.getInt();
+      int dims = header.getInt();
+      if (count <= 0 || dims <= 0) {
+        throw new IOException("star catalog is empty");
+      }
+      if (count > MAX_STARS) {
+        throw new IOException("too many stars for one catalog");
+      }
+
+      IntBuffer ids = map(channel, offset, 4L * count).asIntBuffer();
+      offset = align(offset + 4L * count);
+      DoubleBuffer[] coords = new DoubleBuffer[dims];
+      for (int d = 0; d < dims; d++) {
+        coords[d] = map(channel, offset, 8L * count).asDoubleBuffer();
+        offset += 8L * count;
+      }
+      ShortBuffer splits = map(channel, offset, 2L * count).asShortBuffer();
+      offset = align(offset + 2L * count);
+
+      // the names are few, and needed as objects anyway
+      ByteBuffer names = map(channel, offset,
+          Math.max(0, channel.size() - offset));
+      int named = getBounded(names, count + 1L);
+      Map<Integer, Star> namedBySlot = new HashMap<>();
+      Map<String, Star> namedStars = new HashMap<>();
+      for (int i = 0; i < named; i++) {
+        int slot = getBounded(names, count);
+        int length = getBounded(names, Integer.MAX_VALUE);
+        if (length > names.remaining()) {
+          throw new IOException("star catalog is truncated");
+        }
+        byte[] bytes = new byte[length];
+        names.get(bytes);
+        String name = new String(bytes, StandardCharsets.UTF_8);
+        Star s = new Star(ids.get(slot), name, coordinates(coords, slot));
+        namedBySlot.put(slot, s);
+        namedStars.put(name, s);
+      }
+
+      MappedStars stars = new MappedStars(ids, coords, namedBySlot);
+      return new StarCatalog(new KDTree<>(stars, coords, splits), namedStars);
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long length)
+      throws IOException {
+    if (offset + length > channel.size()) {
+      throw new IOException("star catalog is truncated");
+    }
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+        offset, length);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  /**
+   * Reads an int of the names section, checking it against what the rest of
+   * the catalog allows, so a corrupt catalog fails to open instead of
+   * failing its queries.
+   *
+   * @param names
+   *          - the names section.
+   * @param bound
+   *          - the value has to be below this, and not negative.
+   * @return - the value.
+   * @throws IOException
+   *           - if the section ends first or the value is out of bounds.
+   */
+  private static int getBounded(ByteBuffer names, long bound)
+      throws IOException {
+    if (names.remaining() < 4) {
+      throw new IOException("star catalog is truncated");
+    }
+    int value = names.getInt();
+    if (value < 0 || value >= bound) {
+      throw new IOException("star catalog is corrupt");
+    }
+    return value;
+  }
+
+  private static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  private static double[] coordinates(DoubleBuffer[] coords, int slot) {
+    double[] c = new double[coords.length];
+    for (int d = 0; d < coords.length; d++) {
+      c[d] = coords[d].get(slot);
+    }
+    return c;
+  }
+
+  /**
+   * The stars of a mapped catalog, in tree order. Unnamed stars are decoded
+   * from the columns each time they're asked for; named stars are always the
+   * same instances, the ones in the name index.
+   */
+  private static final class MappedStars extends AbstractList<Star>
+      implements RandomAccess {
+    private final IntBuffer ids;
+    private final DoubleBuffer[] coords;
+    private final Map<Integer, Star> namedBySlot;
+
+    MappedStars(IntBuffer ids, DoubleBuffer[] coords,
+        Map<Integer, Star> namedBySlot) {
+      this.ids = ids;
+      this.coords = coords;
+      this.namedBySlot = namedBySlot;
+    }
+
+    @Override
+    public Star get(int slot) {
+      Star named = namedBySlot.get(slot);
+      if (named != null) {
+        return named;
+      }
+      return new Star(ids.get(slot), "", coordinates(coords, slot));
+    }
+
+    @Override
+    public int size() {
+      return ids.limit();
+    }
+  }
+
+  /**
+   * Buffered little endian writer over a file channel that keeps track of its
+   * offset, so columns can be aligned.
+   */
+  private static final class ColumnWriter {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer
+        .allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private long offset = 0;
+
+    ColumnWriter(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    void putInt(int value) throws IOException {
+      ensure(4);
+      buffer.putInt(value);
+      offset += 4;
+    }
+
+    void putShort(short value) throws IOException {
+      ensure(2);
+      buffer.putShort(value);
+      offset += 2;
+    }
+
+    void putLong(long value) throws IOException {
+      ensure(8);
+      buffer.putLong(value);
+      offset += 8;
+    }
+
+    void putDouble(double value) throws IOException {
+      ensure(8);
+      buffer.putDouble(value);
+      offset += 8;
+    }
+
+    void putBytes(byte[] bytes) throws IOException {
+      for (byte b : bytes) {
+        ensure(1);
+        buffer.put(b);
+      }
+      offset += bytes.length;
+    }
+
+    void align() throws IOException {
+      while ((offset & 7) != 0) {
+        ensure(1);
+        buffer.put((byte) 0);
+        offset++;
+      }
+    }
+
+    void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -6,8 +6,6 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
-import edu.brown.cs.mmines.ApplicationInputs.CSVParser;
-
 /**
  * A handler for inputs to the Stars application from cs32.
  */
@@ -62,40 +60,29 @@ public class StarsHandler implements CommandHandler<StarsHandler> {
    * @return - a string, null if all went well, otherwise the error message.
    */
   private String buildNewTree(String filePath) {
-    List<String[]> stringExtractedData = new LinkedList<>();
-
+    List<Star> stars;
     try {
-      stringExtractedData = CSVParser.parseFile(filePath,
-          "StarID,ProperName,X,Y,Z");
+      stars = StarCSVReader.readStars(filePath);
     } catch (FileNotFoundException e) {
       return "ERROR: During csv parse, file not found.";
     } catch (MalformedParametersException f) {
       return "ERROR: CSV file malformed.";
-    }
-
-    List<Star> stars = new LinkedList<>();
-    try {
-      for (String[] s : stringExtractedData) {
-        int id = Integer.parseInt(s[0]);
-        String name = s[1];
-        double[] coords = new double[3];
-        coords[0] = Double.parseDouble(s[2]);
-        coords[1] = Double.parseDouble(s[3]);
-        coords[2] = Double.parseDouble(s[4]);
-        Star s1 = new Star(id, name, coords);
-        stars.add(s1);
-
-        if (!(name.equals(""))) {
-          this.namesAndStars.put(name, s1);
-        }
-      }
     } catch (NumberFormatException e) {
       return "ERROR: Unable to parse CSV "
           + "information into id and/or coordinates";
     }
 
+    for (Star s1 : stars) {
+      if (!(s1.getName().equals(""))) {
+        this.namesAndStars.put(s1.getName(), s1);
+      }
+    }
+
+    long buildStart = System.nanoTime();
     tree = new KDTree<>(stars);
-    this.initMsg = "Read " + stars.size() + " stars from " + filePath;
+    long buildMillis = (System.nanoTime() - buildStart) / 1000000;
+    this.initMsg = "Read " + stars.size() + " stars from " + filePath
+        + " (tree built in " + buildMillis + " ms)";
     System.out.println(initMsg);
     return "";
   }
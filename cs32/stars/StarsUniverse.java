@@ -1,13 +1,29 @@
 package edu.brown.cs.mmines.stars;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.MalformedParametersException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
 
-import edu.brown.cs.mmines.ApplicationInputs.CSVParser;
 import edu.brown.cs.mmines.ApplicationInputs.CommandManager;
 import edu.brown.cs.mmines.ApplicationInputs.Universe;
 
@@ -18,25 +34,119 @@ import edu.brown.cs.mmines.ApplicationInputs.Universe;
  *
  */
 public class StarsUniverse implements Universe {
-  private KDTree<Star> tree = null;
-  private HashMap<String, Star> namesAndStars = new HashMap<String, Star>();
-  private List<Star> results = new LinkedList<Star>();
-  private String initMsg = null;
+  // number of batch queries read and answered at a time
+  private static final int BATCH_BLOCK = 4096;
+  private static final String APPROX_FLAG = "--approx=";
+  // optional leading approx flag of the neighbors commands; the lookahead
+  // keeps a flag from being read as k when the flag is there but k isn't
+  private static final String APPROX_OPTION =
+      "(?:" + APPROX_FLAG + "[^\\s]+\\s)?(?!" + APPROX_FLAG + ")";
+  // settings swept by neighbors-approx-bench
+  private static final double[] BENCH_EPSILONS = {0, 0.1, 0.5, 1, 2};
+  private static final int[] BENCH_BUDGETS = {16, 64, 256, 1024};
+  // leaf bucket sizes swept by stars-bucket-bench
+  private static final int[] BENCH_BUCKETS = {1, 8, 16, 32, 64};
+  // most stars of a box query kept as results for the GUI; the rest are only
+  // printed, so a huge box is never held in memory
+  private static final int MAX_BOX_RESULTS = 1000;
+  // the catalog queries run against, replaced whole by each load; a query
+  // reads it once and uses that one throughout
+  private volatile LoadedStars current = LoadedStars.NONE;
+  // builds loads one at a time, in the order they were asked for
+  private final ExecutorService loader = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "stars-loader");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  // the most recently submitted load
+  private volatile Future<?> pendingLoad = null;
+  // results of the last query, per calling thread, so concurrent GUI requests
+  // each read back their own
+  private final ThreadLocal<List<Star>> results =
+      new ThreadLocal<List<Star>>() {
+    @Override
+    protected List<Star> initialValue() {
+      return new LinkedList<Star>();
+    }
+  };
+
+  /**
+   * Everything one load of a catalog builds: the index, the kd tree when the
+   * index is one, and the stars by name. Loads build a whole new one off to
+   * the side and then publish it, so queries never see one half built; only
+   * the kd tree and the names are edited afterwards, by deltas, and both are
+   * safe to edit while they're being queried.
+   */
+  private static final class LoadedStars {
+    static final LoadedStars NONE = new LoadedStars(null, null,
+        new ConcurrentHashMap<String, Star>(), null);
+
+    // what neighbors and radius query
+    private final SpatialIndex<Star> index;
+    // the kd index, for the commands only it supports; null for other indexes
+    private final DynamicKDTree<Star> tree;
+    private final Map<String, Star> namesAndStars;
+    private final String initMsg;
+
+    LoadedStars(SpatialIndex<Star> index, DynamicKDTree<Star> tree,
+        Map<String, Star> namesAndStars, String initMsg) {
+      this.index = index;
+      this.tree = tree;
+      this.namesAndStars = namesAndStars;
+      this.initMsg = initMsg;
+    }
+  }
 
   @Override
   public void installCommands(CommandManager cm) {
     cm.register("^stars\\s([^\\s]+)$", new BuildTreeCommand());
-    cm.register("^neighbors\\s([^\\s]+)\\s\\\".+\\\"$",
+    cm.register("^stars\\s([^\\s]+)\\s(kd|vp|hnsw)$", new BuildTreeCommand());
+    cm.register("^stars\\s([^\\s]+)\\s(kd|vp|hnsw)\\s(l2|l1|linf|angular)$",
+        new BuildTreeCommand());
+    cm.register("^hnsw-recall\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)"
+        + "\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)$", new HNSWRecallCommand());
+    cm.register("^index-bench\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)"
+        + "\\s([^\\s]+)$", new IndexBenchCommand());
+    cm.register("^stars-wait$", new WaitCommand());
+    cm.register("^stars-insert\\s([^\\s]+)$", new InsertStarsCommand());
+    cm.register("^stars-remove\\s([^\\s]+)$", new RemoveStarsCommand());
+    cm.register("^stars-compile\\s([^\\s]+)\\s([^\\s]+)$",
+        new CompileCatalogCommand());
+    cm.register("^neighbors\\s" + APPROX_OPTION + "([^\\s]+)\\s\\\".+\\\"$",
         new NeighborsNameCommand());
-    cm.register("^neighbors\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)$",
+    cm.register("^neighbors\\s" + APPROX_OPTION
+        + "([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)$",
         new NeighborsCoordsCommand());
+    cm.register("^neighbors-approx-bench\\s([^\\s]+)\\s([^\\s]+)$",
+        new ApproxBenchCommand());
+    cm.register("^stars-bucket-bench\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)"
+        + "\\s([^\\s]+)$", new BucketBenchCommand());
+    cm.register("^neighbors-batch\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)$",
+        new NeighborsBatchCommand());
     cm.register("^radius\\s([^\\s]+)\\s\\\".+\\\"$", new RadiusNameCommand());
+    cm.register("^box\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)"
+        + "\\s([^\\s]+)\\s([^\\s]+)$", new BoxCommand());
     cm.register("^radius\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)\\s([^\\s]+)$",
         new RadiusCoordsCommand());
   }
 
   /**
-   * Class for the CorpusCommand to load in new text bodies.
+   * Class for the stars command, stars file [kd|vp|hnsw [metric]], which
+   * loads a CSV file or a compiled catalog and builds the index: a KDTree by
+   * default, a VPTree with vp, or an approximate HNSWIndex with hnsw. The
+   * metric is l2 (the default), l1, linf or angular; radii are in radians
+   * under angular. Building an l2 KDTree from a CSV file also writes a
+   * snapshot of the tree next to it, which later loads map instead for as
+   * long as the CSV file keeps its size and modification time.
+   *
+   * The load runs in the background and reports its progress as it goes;
+   * until it is done every query keeps being answered from the stars loaded
+   * before, and then all of them switch over at once. If it fails, those
+   * stay loaded.
    *
    * @author maxmines
    *
@@ -45,63 +155,490 @@ public class StarsUniverse implements Universe {
     @Override
     public void execute(List<String> tokens, PrintWriter pw) {
       String filePath = tokens.get(1).toLowerCase();
-      List<String[]> stringExtractedData = new LinkedList<>();
-      boolean errored = false;
+      String kind = tokens.size() > 2 ? tokens.get(2) : "kd";
+      Metric metric = StandardMetric.EUCLIDEAN;
+      if (tokens.size() > 3) {
+        metric = metricNamed(tokens.get(3));
+      }
+      if (kind.equals("hnsw") && metric != StandardMetric.EUCLIDEAN) {
+        pw.println("ERROR: the hnsw index only supports l2.");
+        return;
+      }
+      final Metric chosen = metric;
+      pw.println("Loading " + filePath + " in the background...");
+      pendingLoad = loader.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            load(filePath, kind, chosen, pw);
+          } catch (RuntimeException e) {
+            pw.println("ERROR: Unable to load " + filePath + ": "
+                + e.getMessage());
+          }
+          pw.flush();
+        }
+      });
+    }
 
-      try {
-        stringExtractedData = CSVParser.parseFile(filePath,
-            "StarID,ProperName,X,Y,Z");
-      } catch (FileNotFoundException e) {
-        pw.println("ERROR: During csv parse, file not found.");
-        errored = true;
-      } catch (MalformedParametersException f) {
-        pw.println("ERROR: CSV file malformed.");
-        errored = true;
+    /**
+     * Loads a file into a new index and publishes it.
+     *
+     * @param filePath
+     *          - the CSV file or catalog.
+     * @param kind
+     *          - kd, vp or hnsw.
+     * @param metric
+     *          - the metric to build it under.
+     * @param pw
+     *          - where to report progress.
+     */
+    private void load(String filePath, String kind, Metric metric,
+        PrintWriter pw) {
+      if (!kind.equals("kd") || metric != StandardMetric.EUCLIDEAN) {
+        // snapshots and catalogs hold l2 trees only
+        buildIndex(filePath, kind, metric, pw);
+        return;
       }
 
-      List<Star> stars = new LinkedList<>();
-      try {
-        for (String[] s : stringExtractedData) {
-          int id = Integer.parseInt(s[0]);
-          String name = s[1];
-          double[] coords = new double[3];
-          coords[0] = Double.parseDouble(s[2]);
-          coords[1] = Double.parseDouble(s[3]);
-          coords[2] = Double.parseDouble(s[4]);
-          Star s1 = new Star(id, name, coords);
-          stars.add(s1);
-
-          if (!(name.equals(""))) {
-            namesAndStars.put(name, s1);
+      if (StarCatalog.isCatalog(filePath)) {
+        try {
+          openCatalog(filePath, filePath, "catalog mapped", pw);
+        } catch (IOException e) {
+          pw.println("ERROR: Unable to open catalog: " + e.getMessage());
+        }
+        return;
+      }
+
+      String snapshotPath = filePath + StarCatalog.SNAPSHOT_SUFFIX;
+      if (StarCatalog.isFreshSnapshot(snapshotPath, filePath)) {
+        try {
+          openCatalog(snapshotPath, filePath, "snapshot loaded", pw);
+          return;
+        } catch (IOException e) {
+          // unreadable snapshot, rebuild from the csv instead
+        }
+      }
+
+      File source = new File(filePath);
+      long sourceSize = source.length();
+      long sourceMtime = source.lastModified();
+      List<Star> stars = readStars(filePath, pw);
+      if (stars != null) {
+        progress(filePath, stars.size(), "kd", pw);
+        Map<String, Star> names = new ConcurrentHashMap<>();
+        for (Star s1 : stars) {
+          if (!(s1.getName().equals(""))) {
+            names.put(s1.getName(), s1);
           }
         }
-      } catch (NumberFormatException e) {
-        pw.println("ERROR: Unable to parse CSV "
-            + "information into id and/or coordinates");
-        errored = true;
+        long buildStart = System.nanoTime();
+        KDTree<Star> built = new KDTree<>(stars);
+        DynamicKDTree<Star> tree = new DynamicKDTree<>(built);
+        long buildMillis = (System.nanoTime() - buildStart) / 1000000;
+        publish(new LoadedStars(tree, tree, names, "Read " + stars.size()
+            + " stars from " + filePath + " (tree built in " + buildMillis
+            + " ms)"), pw);
+        // the old snapshot may still be mapped, here or by another process,
+        // so it is replaced whole rather than written over
+        try {
+          StarCatalog.write(built, snapshotPath, sourceSize, sourceMtime);
+        } catch (IOException e) {
+          // the old snapshot is left as it was, and being stale is never
+          // loaded; the next load just builds again
+        }
       }
+    }
 
-      if (!errored) {
-        tree = new KDTree<>(stars);
-        initMsg = "Read " + stars.size() + " stars from " + filePath;
-        pw.println((initMsg));
+    /**
+     * Maps a catalog and makes it the current tree.
+     *
+     * @param catalogPath
+     *          - the catalog file.
+     * @param filePath
+     *          - the file the user asked for, for the message.
+     * @param how
+     *          - how it was loaded, for the message.
+     * @param pw
+     *          - where to print the message.
+     * @throws IOException
+     *           - if the catalog can't be opened.
+     */
+    private void openCatalog(String catalogPath, String filePath, String how,
+        PrintWriter pw) throws IOException {
+      long openStart = System.nanoTime();
+      StarCatalog catalog = StarCatalog.open(catalogPath);
+      long openMillis = (System.nanoTime() - openStart) / 1000000;
+      DynamicKDTree<Star> tree = new DynamicKDTree<>(catalog.getTree());
+      publish(new LoadedStars(tree, tree,
+          new ConcurrentHashMap<>(catalog.getNamedStars()),
+          "Read " + tree.size() + " stars from " + filePath + " (" + how
+              + " in " + openMillis + " ms)"), pw);
+    }
+
+    /**
+     * Reads the stars of a CSV file or catalog into a new index, other than
+     * an l2 kd index, and makes it the current index.
+     *
+     * @param filePath
+     *          - the file.
+     * @param kind
+     *          - kd, vp or hnsw.
+     * @param metric
+     *          - the metric to build it under.
+     * @param pw
+     *          - where to print the message.
+     */
+    private void buildIndex(String filePath, String kind, Metric metric,
+        PrintWriter pw) {
+      List<Star> stars;
+      if (StarCatalog.isCatalog(filePath)) {
+        try {
+          stars = StarCatalog.open(filePath).getTree().kdablesInTreeOrder();
+        } catch (IOException e) {
+          pw.println("ERROR: Unable to open catalog: " + e.getMessage());
+          return;
+        }
+      } else {
+        stars = readStars(filePath, pw);
+        if (stars == null) {
+          return;
+        }
+      }
+      progress(filePath, stars.size(), kind, pw);
+      Map<String, Star> names = new ConcurrentHashMap<>();
+      for (Star s1 : stars) {
+        if (!(s1.getName().equals(""))) {
+          names.put(s1.getName(), s1);
+        }
+      }
+      long buildStart = System.nanoTime();
+      SpatialIndex<Star> built;
+      DynamicKDTree<Star> kd = null;
+      if (kind.equals("hnsw")) {
+        built = new HNSWIndex<>(stars);
+      } else if (kind.equals("vp")) {
+        built = new VPTree<>(stars, KDTree.DEFAULT_BUCKET_SIZE, metric);
+      } else {
+        kd = new DynamicKDTree<>(
+            new KDTree<>(stars, KDTree.DEFAULT_BUCKET_SIZE, metric));
+        built = kd;
       }
+      long buildMillis = (System.nanoTime() - buildStart) / 1000000;
+      publish(new LoadedStars(built, kd, names, "Read " + stars.size()
+          + " stars from " + filePath + " (" + kind + " "
+          + metric.toString().toLowerCase() + " index built in "
+          + buildMillis + " ms)"), pw);
+    }
+
+    private void progress(String filePath, int read, String kind,
+        PrintWriter pw) {
+      pw.println("Loading " + filePath + ": read " + read
+          + " stars, building the " + kind + " index...");
+      pw.flush();
+    }
+
+    /**
+     * Makes a fully built load the one every query from now on runs against.
+     * Queries already running finish against the one before.
+     *
+     * @param loaded
+     *          - the new load.
+     * @param pw
+     *          - where to report it.
+     */
+    private void publish(LoadedStars loaded, PrintWriter pw) {
+      current = loaded;
+      pw.println(loaded.initMsg);
+      pw.flush();
     }
   }
 
   /**
-   * Class for Neighbors command with the name of the star.
+   * Class for the stars-wait command, which waits for every load asked for
+   * so far to be done, so that a script can be sure what its next queries
+   * run against.
    *
    * @author maxmines
    *
    */
-  public class NeighborsNameCommand implements CommandManager.Command {
+  public class WaitCommand implements CommandManager.Command {
     @Override
     public void execute(List<String> tokens, PrintWriter pw) {
-      if (!(tree == null)) {
+      awaitLoads();
+      LoadedStars loaded = current;
+      if (loaded.index == null) {
+        pw.println("No stars loaded.");
+      } else {
+        pw.println(loaded.initMsg);
+      }
+    }
+  }
 
-        String k = tokens.get(1);
-        String name = tokens.get(2);
+  /**
+   * Waits for every load submitted so far to finish. The stars command
+   * returns as soon as its load is underway, and the load reports to the
+   * command's PrintWriter as it goes; a caller that reads that writer right
+   * after the command, like the GUI, waits here first to see the outcome.
+   */
+  public void awaitLoads() {
+    Future<?> pending = pendingLoad;
+    if (pending == null) {
+      return;
+    }
+    try {
+      pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // loads report their own errors
+    }
+  }
+
+  /**
+   * The stars to answer a query from. That is what is loaded now, unless
+   * nothing is yet and a load is underway, in which case there is nothing
+   * to answer from but what that load builds, so it is waited for.
+   *
+   * @return - the loaded stars, with no index if there are none.
+   */
+  private LoadedStars loaded() {
+    LoadedStars loaded = current;
+    if (loaded.index == null && pendingLoad != null) {
+      awaitLoads();
+      loaded = current;
+    }
+    return loaded;
+  }
+
+  /**
+   * The metric for a name accepted by the stars command.
+   *
+   * @param name
+   *          - l2, l1, linf or angular.
+   * @return - the metric.
+   */
+  private static Metric metricNamed(String name) {
+    switch (name) {
+      case "l1":
+        return StandardMetric.MANHATTAN;
+      case "linf":
+        return StandardMetric.CHEBYSHEV;
+      case "angular":
+        return StandardMetric.ANGULAR;
+      default:
+        return StandardMetric.EUCLIDEAN;
+    }
+  }
+
+  /**
+   * Checks that the loaded index is the kd index, which is the only one
+   * taking updates, approximate and box queries.
+   *
+   * @param loaded
+   *          - the loaded stars.
+   * @param pw
+   *          - where to print an error if not.
+   * @return - true if the kd index is loaded.
+   */
+  private boolean hasKDTree(LoadedStars loaded, PrintWriter pw) {
+    if (loaded.tree != null) {
+      return true;
+    }
+    if (loaded.index == null) {
+      pw.println("ERROR: instantiate tree first.");
+    } else {
+      pw.println("ERROR: this command needs the kd index.");
+    }
+    return false;
+  }
+
+  /**
+   * Class for the stars-insert command, stars-insert csv. Inserts every star of
+   * a delta CSV file (same format as for stars) into the current tree,
+   * without rebuilding it. Loads still underway are waited for first, so the
+   * delta applies to the last file loaded.
+   *
+   * @author maxmines
+   *
+   */
+  public class InsertStarsCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      awaitLoads();
+      LoadedStars loaded = current;
+      if (!hasKDTree(loaded, pw)) {
+        return;
+      }
+      DynamicKDTree<Star> tree = loaded.tree;
+      List<Star> stars = readStars(tokens.get(1), pw);
+      if (stars != null) {
+        for (Star s1 : stars) {
+          tree.insert(s1);
+          if (!(s1.getName().equals(""))) {
+            loaded.namesAndStars.put(s1.getName(), s1);
+          }
+        }
+        pw.println("Inserted " + stars.size() + " stars (" + tree.size()
+            + " stars in " + tree.levelCount() + " trees)");
+      }
+    }
+  }
+
+  /**
+   * Class for the stars-remove command, stars-remove csv. Removes every star of
+   * a delta CSV file from the current tree. A star is matched on its id and
+   * its exact coordinates. Like stars-insert, it waits for loads first.
+   *
+   * @author maxmines
+   *
+   */
+  public class RemoveStarsCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      awaitLoads();
+      LoadedStars loaded = current;
+      if (!hasKDTree(loaded, pw)) {
+        return;
+      }
+      DynamicKDTree<Star> tree = loaded.tree;
+      List<Star> stars = readStars(tokens.get(1), pw);
+      if (stars != null) {
+        int removed = 0;
+        for (Star s1 : stars) {
+          if (tree.remove(s1)) {
+            removed++;
+            if (!(s1.getName().equals(""))) {
+              loaded.namesAndStars.remove(s1.getName(), s1);
+            }
+          }
+        }
+        pw.println("Removed " + removed + " of " + stars.size() + " stars ("
+            + tree.size() + " stars in " + tree.levelCount() + " trees)");
+      }
+    }
+  }
+
+  /**
+   * Class for the stars-compile command, stars-compile csv bin. Builds the
+   * tree for a CSV file and writes it out as a binary StarCatalog, which the
+   * stars command can then map instead of parsing and building again.
+   *
+   * @author maxmines
+   *
+   */
+  public class CompileCatalogCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      String csvPath = tokens.get(1);
+      String binPath = tokens.get(2);
+      List<Star> stars = readStars(csvPath, pw);
+      if (stars != null) {
+        try {
+          StarCatalog.write(new KDTree<>(stars), binPath);
+          pw.println("Compiled " + stars.size() + " stars from " + csvPath
+              + " into " + binPath);
+        } catch (IllegalArgumentException | IOException e) {
+          pw.println("ERROR: Unable to write catalog: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the stars out of a CSV file.
+   *
+   * @param filePath
+   *          - path to a csv file with header StarID,ProperName,X,Y,Z.
+   * @param pw
+   *          - where to print errors.
+   * @return - the stars in file order, or null if the file couldn't be read.
+   */
+  private List<Star> readStars(String filePath, PrintWriter pw) {
+    try {
+      return StarCSVReader.readStars(filePath);
+    } catch (FileNotFoundException e) {
+      pw.println("ERROR: During csv parse, file not found.");
+    } catch (MalformedParametersException f) {
+      pw.println("ERROR: CSV file malformed.");
+    } catch (NumberFormatException e) {
+      pw.println("ERROR: Unable to parse CSV "
+          + "information into id and/or coordinates");
+    }
+    return null;
+  }
+
+  /**
+   * Parses the --approx=epsilon[,maxVisited] flag of the neighbors commands.
+   *
+   * @param flag
+   *          - the flag token.
+   * @param pw
+   *          - where to print errors.
+   * @return - the limits, or null if the flag is malformed.
+   */
+  private SearchLimits parseLimits(String flag, PrintWriter pw) {
+    String[] parts = flag.substring(APPROX_FLAG.length()).split(",");
+    try {
+      if (parts.length == 1) {
+        return new SearchLimits(Double.parseDouble(parts[0]), 0);
+      } else if (parts.length == 2) {
+        return new SearchLimits(Double.parseDouble(parts[0]),
+            Integer.parseInt(parts[1]));
+      }
+    } catch (IllegalArgumentException e) {
+      // NumberFormatException included; falls through to the error
+    }
+    pw.println("ERROR: approx must be --approx=epsilon[,maxVisited], "
+        + "both non-negative.");
+    return null;
+  }
+
+  /**
+   * Prints the results of a neighbors query, and after an approximate one
+   * whether the answer is exact.
+   *
+   * @param returnedList
+   *          - the neighbors.
+   * @param limits
+   *          - the limits of an approximate query, or null.
+   * @param pw
+   *          - where to print.
+   */
+  private void printNeighbors(List<Star> returnedList, SearchLimits limits,
+      PrintWriter pw) {
+    results.set(returnedList);
+    for (Star st : returnedList) {
+      pw.println(st.toString());
+    }
+    if (limits != null) {
+      pw.println("approx: " + (limits.isExact() ? "exact" : "approximate")
+          + " (" + limits.getVisited() + " nodes visited)");
+    }
+  }
+
+  /**
+   * Class for Neighbors command with the name of the star. With
+   * --approx=epsilon[,maxVisited] before k, the search is approximate.
+   *
+   * @author maxmines
+   *
+   */
+  public class NeighborsNameCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      LoadedStars loaded = loaded();
+      if (!(loaded.index == null)) {
+        int arg = 1;
+        SearchLimits limits = null;
+        if (tokens.get(arg).startsWith(APPROX_FLAG)) {
+          limits = parseLimits(tokens.get(arg), pw);
+          if (limits == null || !hasKDTree(loaded, pw)) {
+            return;
+          }
+          arg++;
+        }
+        String k = tokens.get(arg);
+        String name = tokens.get(arg + 1);
         int neighbors;
         boolean errored = false;
         if ((name.charAt(0) == '\"')
@@ -118,23 +655,30 @@ public class StarsUniverse implements Universe {
             errored = true;
           }
           if (neighbors == 0) {
-            results = new LinkedList<Star>();
+            results.set(new LinkedList<Star>());
             errored = true;
           }
-          Star returnedStar = namesAndStars.get(name);
+          Star returnedStar = loaded.namesAndStars.get(name);
           if (returnedStar == null) {
             pw.println("ERROR: Could not find a star with that name.");
             errored = true;
           }
 
           if (!errored) {
-            List<Star> returnedList = tree.nearestNeighbor(returnedStar,
-                neighbors + 1);
-            returnedList.remove(returnedStar);
-            results = returnedList;
-            for (Star st : returnedList) {
-              pw.println(st.toString());
+            List<Star> returnedList;
+            if (limits == null) {
+              returnedList = loaded.index.nearestNeighbor(returnedStar,
+                  neighbors + 1);
+            } else {
+              returnedList = loaded.tree.nearestNeighbor(returnedStar,
+                  neighbors + 1, limits).getNeighbors();
+            }
+            // an approximate search may not have found the star itself
+            if (!returnedList.remove(returnedStar)
+                && returnedList.size() > neighbors) {
+              returnedList.remove(returnedList.size() - 1);
             }
+            printNeighbors(returnedList, limits, pw);
           }
         } catch (NumberFormatException e) {
           pw.println("ERROR: Number of neighbors must be an integer.");
@@ -146,7 +690,8 @@ public class StarsUniverse implements Universe {
   }
 
   /**
-   * Class for neighbors command with coordinates.
+   * Class for neighbors command with coordinates. With
+   * --approx=epsilon[,maxVisited] before k, the search is approximate.
    *
    * @author maxmines
    *
@@ -154,12 +699,21 @@ public class StarsUniverse implements Universe {
   public class NeighborsCoordsCommand implements CommandManager.Command {
     @Override
     public void execute(List<String> tokens, PrintWriter pw) {
-      if (!(tree == null)) {
-
-        String k = tokens.get(1);
-        String x = tokens.get(2);
-        String y = tokens.get(3);
-        String z = tokens.get(4);
+      LoadedStars loaded = loaded();
+      if (!(loaded.index == null)) {
+        int arg = 1;
+        SearchLimits limits = null;
+        if (tokens.get(arg).startsWith(APPROX_FLAG)) {
+          limits = parseLimits(tokens.get(arg), pw);
+          if (limits == null || !hasKDTree(loaded, pw)) {
+            return;
+          }
+          arg++;
+        }
+        String k = tokens.get(arg);
+        String x = tokens.get(arg + 1);
+        String y = tokens.get(arg + 2);
+        String z = tokens.get(arg + 3);
         boolean errored = false;
 
         int neighbors = -1;
@@ -170,7 +724,7 @@ public class StarsUniverse implements Universe {
             errored = true;
           }
           if (neighbors == 0) {
-            results = new LinkedList<Star>();
+            results.set(new LinkedList<Star>());
             errored = true;
           }
         } catch (NumberFormatException e) {
@@ -194,11 +748,14 @@ public class StarsUniverse implements Universe {
 
         if (!errored) {
           Star s = new Star(0, "", coords);
-          List<Star> returnedList = tree.nearestNeighbor(s, neighbors);
-          results = returnedList;
-          for (Star st : returnedList) {
-            pw.println(st.toString());
+          List<Star> returnedList;
+          if (limits == null) {
+            returnedList = loaded.index.nearestNeighbor(s, neighbors);
+          } else {
+            returnedList = loaded.tree.nearestNeighbor(s, neighbors, limits)
+                .getNeighbors();
           }
+          printNeighbors(returnedList, limits, pw);
         }
       } else {
         pw.println("ERROR: instantiate tree first.");
@@ -206,6 +763,451 @@ public class StarsUniverse implements Universe {
     }
   }
 
+  /**
+   * Class for the neighbors-approx-bench command, neighbors-approx-bench
+   * queries k. Queries the k nearest neighbors of randomly sampled stars
+   * under a range of approximation factors and visit budgets, and prints the
+   * mean latency, the recall against the exact answers, and how many of the
+   * answers were exact for each.
+   *
+   * @author maxmines
+   *
+   */
+  public class ApproxBenchCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      LoadedStars loaded = loaded();
+      if (!hasKDTree(loaded, pw)) {
+        return;
+      }
+      DynamicKDTree<Star> tree = loaded.tree;
+      int queries;
+      int neighbors;
+      try {
+        queries = Integer.parseInt(tokens.get(1));
+        neighbors = Integer.parseInt(tokens.get(2));
+      } catch (NumberFormatException e) {
+        pw.println("ERROR: Queries and neighbors must be integers.");
+        return;
+      }
+      if (queries < 1 || neighbors < 1) {
+        pw.println("ERROR: Queries and neighbors must be positive.");
+        return;
+      }
+      List<Star> targets = tree.sample(queries, new Random(queries));
+      if (targets.isEmpty()) {
+        pw.println("ERROR: tree is empty.");
+        return;
+      }
+
+      List<Set<Star>> truth = new ArrayList<>(targets.size());
+      for (Star target : targets) {
+        truth.add(new HashSet<>(tree.nearestNeighbor(target, neighbors)));
+      }
+      pw.println("epsilon\tmaxVisited\tus/query\trecall\texact");
+      for (double epsilon : BENCH_EPSILONS) {
+        bench(tree, epsilon, 0, targets, truth, neighbors, pw);
+      }
+      for (int maxVisited : BENCH_BUDGETS) {
+        bench(tree, 0, maxVisited, targets, truth, neighbors, pw);
+      }
+    }
+
+    private void bench(DynamicKDTree<Star> tree, double epsilon,
+        int maxVisited, List<Star> targets, List<Set<Star>> truth,
+        int neighbors, PrintWriter pw) {
+      long found = 0;
+      long expected = 0;
+      int exact = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < targets.size(); i++) {
+        NeighborResult<Star> result = tree.nearestNeighbor(targets.get(i),
+            neighbors, new SearchLimits(epsilon, maxVisited));
+        for (Star st : result.getNeighbors()) {
+          if (truth.get(i).contains(st)) {
+            found++;
+          }
+        }
+        expected += truth.get(i).size();
+        if (result.isExact()) {
+          exact++;
+        }
+      }
+      long nanos = System.nanoTime() - start;
+      pw.println(String.format("%.2f\t%s\t%.2f\t%.4f\t%d/%d", epsilon,
+          (maxVisited == 0) ? "-" : Integer.toString(maxVisited),
+          nanos / 1e3 / targets.size(), (double) found / expected, exact,
+          targets.size()));
+    }
+  }
+
+  /**
+   * Class for the stars-bucket-bench command, stars-bucket-bench csv queries k
+   * r. Builds a tree over the stars of a CSV file for each leaf bucket size,
+   * then times k nearest neighbors and radius r queries around randomly
+   * picked stars (the same ones for every size), and prints the build time
+   * and mean query latencies. Each size runs its queries once untimed first,
+   * to warm up.
+   *
+   * @author maxmines
+   *
+   */
+  public class BucketBenchCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      int queries;
+      int neighbors;
+      double radius;
+      try {
+        queries = Integer.parseInt(tokens.get(2));
+        neighbors = Integer.parseInt(tokens.get(3));
+        radius = Double.parseDouble(tokens.get(4));
+      } catch (NumberFormatException e) {
+        pw.println("ERROR: Queries and neighbors must be integers, radius a "
+            + "double.");
+        return;
+      }
+      if (queries < 1 || neighbors < 1 || radius < 0) {
+        pw.println("ERROR: Queries and neighbors must be positive, radius "
+            + "non-negative.");
+        return;
+      }
+      List<Star> stars = readStars(tokens.get(1), pw);
+      if (stars == null) {
+        return;
+      }
+      if (stars.isEmpty()) {
+        pw.println("ERROR: CSV file has no stars.");
+        return;
+      }
+      Random random = new Random(queries);
+      List<Star> targets = new ArrayList<>(queries);
+      for (int i = 0; i < queries; i++) {
+        targets.add(stars.get(random.nextInt(stars.size())));
+      }
+
+      pw.println("bucket\tbuild ms\tknn us/query\tradius us/query");
+      for (int bucketSize : BENCH_BUCKETS) {
+        long start = System.nanoTime();
+        KDTree<Star> bucketed = new KDTree<>(stars, bucketSize);
+        long buildNanos = System.nanoTime() - start;
+        long knnNanos = 0;
+        long radiusNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+          start = System.nanoTime();
+          for (Star target : targets) {
+            bucketed.nearestNeighbor(target, neighbors);
+          }
+          knnNanos = System.nanoTime() - start;
+          start = System.nanoTime();
+          for (Star target : targets) {
+            bucketed.radiusSearch(radius, target);
+          }
+          radiusNanos = System.nanoTime() - start;
+        }
+        pw.println(String.format("%d\t%d\t%.2f\t%.2f", bucketSize,
+            buildNanos / 1000000, knnNanos / 1e3 / queries,
+            radiusNanos / 1e3 / queries));
+      }
+    }
+  }
+
+  /**
+   * Class for the index-bench command, index-bench size dims queries k.
+   * Generates size uniformly random points of dims dimensions, builds each
+   * kind of index over them, and prints its build time and mean k nearest
+   * neighbors latency over random query points, next to a linear scan. The
+   * queries run once untimed first, to warm up.
+   *
+   * @author maxmines
+   *
+   */
+  public class IndexBenchCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      int size;
+      int dims;
+      int queries;
+      int neighbors;
+      try {
+        size = Integer.parseInt(tokens.get(1));
+        dims = Integer.parseInt(tokens.get(2));
+        queries = Integer.parseInt(tokens.get(3));
+        neighbors = Integer.parseInt(tokens.get(4));
+      } catch (NumberFormatException e) {
+        pw.println("ERROR: Size, dimensions, queries and neighbors must be "
+            + "integers.");
+        return;
+      }
+      if (size < 1 || dims < 1 || queries < 1 || neighbors < 1) {
+        pw.println("ERROR: Size, dimensions, queries and neighbors must be "
+            + "positive.");
+        return;
+      }
+      Random random = new Random(size ^ dims);
+      List<Star> points = randomPoints(size, dims, random);
+      List<Star> targets = randomPoints(queries, dims, random);
+
+      pw.println("index\tbuild ms\tknn us/query");
+      long start = System.nanoTime();
+      SpatialIndex<Star> kd = new KDTree<>(points);
+      benchIndex("kd", kd, System.nanoTime() - start, targets, neighbors, pw);
+      start = System.nanoTime();
+      SpatialIndex<Star> vp = new VPTree<>(points);
+      benchIndex("vp", vp, System.nanoTime() - start, targets, neighbors, pw);
+
+      // linear scan, the baseline both should beat
+      long nanos = 0;
+      for (int pass = 0; pass < 2; pass++) {
+        start = System.nanoTime();
+        for (Star target : targets) {
+          scanNearest(points, target, neighbors);
+        }
+        nanos = System.nanoTime() - start;
+      }
+      pw.println(String.format("scan\t0\t%.2f", nanos / 1e3 / queries));
+    }
+
+    private void benchIndex(String name, SpatialIndex<Star> built,
+        long buildNanos, List<Star> targets, int neighbors, PrintWriter pw) {
+      long nanos = 0;
+      for (int pass = 0; pass < 2; pass++) {
+        long start = System.nanoTime();
+        for (Star target : targets) {
+          built.nearestNeighbor(target, neighbors);
+        }
+        nanos = System.nanoTime() - start;
+      }
+      pw.println(String.format("%s\t%d\t%.2f", name, buildNanos / 1000000,
+          nanos / 1e3 / targets.size()));
+    }
+  }
+
+  /**
+   * Class for the hnsw-recall command, hnsw-recall size dims queries k m
+   * efConstruction efSearches. Generates size uniformly random points of
+   * dims dimensions, builds an HNSWIndex over them with the given m and
+   * efConstruction, and for each of the comma separated efSearch values
+   * prints the mean k nearest neighbors latency and the recall against a
+   * brute force scan.
+   *
+   * @author maxmines
+   *
+   */
+  public class HNSWRecallCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      int size;
+      int dims;
+      int queries;
+      int neighbors;
+      int m;
+      int efConstruction;
+      String[] efParts = tokens.get(7).split(",");
+      int[] efSearches = new int[efParts.length];
+      try {
+        size = Integer.parseInt(tokens.get(1));
+        dims = Integer.parseInt(tokens.get(2));
+        queries = Integer.parseInt(tokens.get(3));
+        neighbors = Integer.parseInt(tokens.get(4));
+        m = Integer.parseInt(tokens.get(5));
+        efConstruction = Integer.parseInt(tokens.get(6));
+        for (int i = 0; i < efParts.length; i++) {
+          efSearches[i] = Integer.parseInt(efParts[i]);
+        }
+      } catch (NumberFormatException e) {
+        pw.println("ERROR: All hnsw-recall arguments must be integers.");
+        return;
+      }
+      if (size < 1 || dims < 1 || queries < 1 || neighbors < 1) {
+        pw.println("ERROR: Size, dimensions, queries and neighbors must be "
+            + "positive.");
+        return;
+      }
+      Random random = new Random(size ^ dims);
+      List<Star> points = randomPoints(size, dims, random);
+      List<Star> targets = randomPoints(queries, dims, random);
+
+      HNSWIndex<Star> hnsw;
+      long start = System.nanoTime();
+      try {
+        hnsw = new HNSWIndex<>(points, m, efConstruction,
+            HNSWIndex.DEFAULT_EF_SEARCH);
+      } catch (IllegalArgumentException e) {
+        pw.println("ERROR: " + e.getMessage());
+        return;
+      }
+      pw.println("Built in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+      List<Set<Star>> truth = new ArrayList<>(queries);
+      start = System.nanoTime();
+      for (Star target : targets) {
+        truth.add(new HashSet<>(scanNearest(points, target, neighbors)));
+      }
+      pw.println(String.format("brute force: %.2f us/query",
+          (System.nanoTime() - start) / 1e3 / queries));
+
+      pw.println("efSearch\tus/query\trecall");
+      for (int ef : efSearches) {
+        if (ef < 1) {
+          pw.println("ERROR: efSearch must be positive.");
+          return;
+        }
+        long found = 0;
+        long expected = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+          for (Star st : hnsw.nearestNeighbor(targets.get(i), neighbors, ef)) {
+            if (truth.get(i).contains(st)) {
+              found++;
+            }
+          }
+          expected += truth.get(i).size();
+        }
+        long nanos = System.nanoTime() - start;
+        pw.println(String.format("%d\t%.2f\t%.4f", ef, nanos / 1e3 / queries,
+            (double) found / expected));
+      }
+    }
+  }
+
+  /**
+   * Points with uniformly random coordinates in [0, 1), for benchmarks.
+   *
+   * @param n
+   *          - the number of points.
+   * @param dims
+   *          - the dimensions of each.
+   * @param random
+   *          - the source of randomness.
+   * @return - the points, as stars with ids 0 to n - 1.
+   */
+  private static List<Star> randomPoints(int n, int dims, Random random) {
+    List<Star> points = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      double[] coords = new double[dims];
+      for (int d = 0; d < dims; d++) {
+        coords[d] = random.nextDouble();
+      }
+      points.add(new Star(i, "", coords));
+    }
+    return points;
+  }
+
+  /**
+   * K nearest neighbors by brute force, the baseline for benchmarks.
+   *
+   * @param points
+   *          - the points to search.
+   * @param target
+   *          - the target.
+   * @param k
+   *          - the number of neighbors.
+   * @return - the k points nearest the target, nearest first.
+   */
+  private static List<Star> scanNearest(List<Star> points, Star target,
+      int k) {
+    NeighborHeap<Star> heap = new NeighborHeap<>(k);
+    for (Star p : points) {
+      double dist = p.euclideanDistance(target);
+      heap.offer(p, dist * dist);
+    }
+    return heap.drainSorted();
+  }
+
+  /**
+   * Class for the batch neighbors command, neighbors-batch in out k. Reads one
+   * query point per line of the input file ("x y z" or "x,y,z"), and writes
+   * the ids of its k nearest neighbors, comma separated, to the same line of
+   * the output file. Queries are answered BATCH_BLOCK lines at a time, in
+   * parallel within a block, and written out in input order.
+   *
+   * @author maxmines
+   *
+   */
+  public class NeighborsBatchCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      // every block is answered from the stars loaded when the batch began
+      LoadedStars loaded = loaded();
+      if (loaded.index == null) {
+        pw.println("ERROR: instantiate tree first.");
+        return;
+      }
+      int neighbors;
+      try {
+        neighbors = Integer.parseInt(tokens.get(3));
+      } catch (NumberFormatException e) {
+        pw.println("ERROR: Number of neighbors must be an integer.");
+        return;
+      }
+      if (neighbors < 1) {
+        pw.println("ERROR: Number of neighbors must be positive.");
+        return;
+      }
+
+      long start = System.nanoTime();
+      long answered = 0;
+      try (BufferedReader br = new BufferedReader(
+          new FileReader(tokens.get(1)));
+          PrintWriter out = new PrintWriter(
+              new BufferedWriter(new FileWriter(tokens.get(2))))) {
+        List<double[]> block = new ArrayList<>(BATCH_BLOCK);
+        String line;
+        while ((line = br.readLine()) != null) {
+          if (line.trim().isEmpty()) {
+            continue;
+          }
+          String[] parts = line.trim().split("[\\s,]+");
+          if (parts.length != 3) {
+            pw.println("ERROR: line " + (answered + block.size() + 1)
+                + " of input is not three coordinates.");
+            return;
+          }
+          double[] coords = new double[3];
+          for (int i = 0; i < 3; i++) {
+            coords[i] = Double.parseDouble(parts[i]);
+          }
+          block.add(coords);
+          if (block.size() == BATCH_BLOCK) {
+            writeBatch(loaded.index.nearestNeighbors(
+                block.toArray(new double[0][]), neighbors), out);
+            answered += block.size();
+            block.clear();
+          }
+        }
+        writeBatch(loaded.index.nearestNeighbors(
+            block.toArray(new double[0][]), neighbors), out);
+        answered += block.size();
+      } catch (NumberFormatException e) {
+        pw.println("ERROR: Coordinates must be parsable to doubles.");
+        return;
+      } catch (IOException e) {
+        pw.println("ERROR: " + e.getMessage());
+        return;
+      }
+
+      long nanos = System.nanoTime() - start;
+      long qps = (nanos == 0) ? 0 : (long) (answered * 1e9 / nanos);
+      pw.println("Answered " + answered + " queries in " + (nanos / 1000000)
+          + " ms (" + qps + " queries/s)");
+    }
+
+    private void writeBatch(List<List<Star>> batch, PrintWriter out) {
+      StringBuilder sb = new StringBuilder();
+      for (List<Star> found : batch) {
+        sb.setLength(0);
+        for (Star st : found) {
+          if (sb.length() > 0) {
+            sb.append(',');
+          }
+          sb.append(st.toString());
+        }
+        out.println(sb);
+      }
+    }
+  }
+
   /**
    * Class for radius command with name.
    *
@@ -215,7 +1217,8 @@ public class StarsUniverse implements Universe {
   public class RadiusNameCommand implements CommandManager.Command {
     @Override
     public void execute(List<String> tokens, PrintWriter pw) {
-      if (!(tree == null)) {
+      LoadedStars loaded = loaded();
+      if (!(loaded.index == null)) {
         String r = tokens.get(1);
         String name = tokens.get(2);
         double radius = -1;
@@ -238,16 +1241,17 @@ public class StarsUniverse implements Universe {
           errored = true;
         }
 
-        Star returnedStar = namesAndStars.get(name);
+        Star returnedStar = loaded.namesAndStars.get(name);
         if (returnedStar == null) {
           pw.println("ERROR: Could not find a star with that name.");
           errored = true;
         }
 
         if (!errored) {
-          List<Star> returnedList = tree.radiusSearch(radius, returnedStar);
+          List<Star> returnedList = loaded.index.radiusSearch(radius,
+              returnedStar);
           returnedList.remove(returnedStar);
-          results = returnedList;
+          results.set(returnedList);
           for (Star st : returnedList) {
             pw.println(st.toString());
           }
@@ -267,7 +1271,8 @@ public class StarsUniverse implements Universe {
   public class RadiusCoordsCommand implements CommandManager.Command {
     @Override
     public void execute(List<String> tokens, PrintWriter pw) {
-      if (!(tree == null)) {
+      LoadedStars loaded = loaded();
+      if (!(loaded.index == null)) {
         String r = tokens.get(1);
         String x = tokens.get(2);
         String y = tokens.get(3);
@@ -301,8 +1306,8 @@ public class StarsUniverse implements Universe {
 
         if (!errored) {
           Star s = new Star(0, "", coords);
-          List<Star> returnedList = tree.radiusSearch(radius, s);
-          results = returnedList;
+          List<Star> returnedList = loaded.index.radiusSearch(radius, s);
+          results.set(returnedList);
           for (Star st : returnedList) {
             pw.println(st.toString());
           }
@@ -313,12 +1318,79 @@ public class StarsUniverse implements Universe {
     }
   }
 
+  /**
+   * Class for the box command, box x1 y1 z1 x2 y2 z2. Prints every star in
+   * the axis-aligned box with the two given opposite corners, bounds
+   * included, as the range search streams them out. Only the first
+   * MAX_BOX_RESULTS are kept as results.
+   *
+   * @author maxmines
+   *
+   */
+  public class BoxCommand implements CommandManager.Command {
+    @Override
+    public void execute(List<String> tokens, PrintWriter pw) {
+      LoadedStars loaded = loaded();
+      if (!hasKDTree(loaded, pw)) {
+        return;
+      }
+      double[] min = new double[3];
+      double[] max = new double[3];
+      try {
+        for (int d = 0; d < 3; d++) {
+          double a = Double.parseDouble(tokens.get(1 + d));
+          double b = Double.parseDouble(tokens.get(4 + d));
+          min[d] = Math.min(a, b);
+          max[d] = Math.max(a, b);
+        }
+      } catch (NumberFormatException e) {
+        pw.println("ERROR: coordinates must be parsable to doubles.");
+        return;
+      }
+
+      List<Star> returnedList = new ArrayList<>();
+      try {
+        loaded.tree.rangeSearch(min, max).forEach(new Consumer<Star>() {
+          @Override
+          public void accept(Star st) {
+            pw.println(st.toString());
+            if (returnedList.size() < MAX_BOX_RESULTS) {
+              returnedList.add(st);
+            }
+          }
+        });
+      } catch (UnsupportedOperationException e) {
+        pw.println("ERROR: " + e.getMessage() + ".");
+        return;
+      }
+      results.set(returnedList);
+    }
+  }
+
+  /**
+   * Batch k-nearest-neighbors over the current tree, answered in parallel.
+   *
+   * @param targets
+   *          - the coordinates of each query point.
+   * @param k
+   *          - the number of neighbors per query, at least 1.
+   * @return - for each query, in input order, its neighbors nearest first.
+   */
+  public List<List<Star>> neighborsBatch(double[][] targets, int k) {
+    LoadedStars loaded = loaded();
+    if (loaded.index == null) {
+      throw new IllegalStateException("instantiate tree first.");
+    }
+    return loaded.index.nearestNeighbors(targets, k);
+  }
+
   /**
    * Getter method for results.
    *
-   * @return - a list of stars, result of previous call.
+   * @return - a list of stars, result of the previous call made on this
+   *         thread.
    */
   public List<Star> returnResults() {
-    return this.results;
+    return this.results.get();
   }
 }
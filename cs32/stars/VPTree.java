@@ -0,0 +1,311 @@
+package edu.brown.cs.mmines.stars;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Class for vantage point trees. Where a KDTree splits on one coordinate at a
+ * time, and so needs more and more levels before its splits say anything once
+ * there are many dimensions, a vantage point tree splits on the distance to
+ * one of its points: everything within the median distance of the vantage
+ * point goes inside, everything else outside. Searches prune with the
+ * triangle inequality only, which holds up better for high dimensional
+ * points, and holds for every Metric, so any of them can be used.
+ *
+ * Like the KDTree it is laid out implicitly: the subtree over the slots [lo,
+ * hi) has its vantage point in slot lo, its inside in [lo + 1, mid) and its
+ * outside in [mid, hi), where mid = (lo + 1 + hi) / 2. The coordinates are
+ * kept row by row, in tree order, so a distance reads one contiguous run.
+ * Subtrees of at most bucketSize points are leaf buckets and scanned.
+ *
+ * @author maxmines
+ *
+ * @param <T>
+ *          - a KDable object type.
+ */
+public class VPTree<T extends KDable<T>> implements SpatialIndex<T> {
+  // fixed so that the same points always give the same tree
+  private static final long SEED = 0x5653L;
+
+  private final int dims;
+  private final int bucketSize;
+  private final Metric metric;
+  private final List<T> kdables;
+  // dims coordinates per slot, in tree order
+  private final double[] points;
+  // median distance from the vantage point in each node's first slot
+  private final double[] radii;
+
+  /**
+   * Constructor for VPTree, with leaf buckets of the KDTree's default size.
+   *
+   * @param toBeNodes
+   *          - a list of KDables, to be laid out in the tree.
+   */
+  VPTree(List<T> toBeNodes) throws IllegalArgumentException {
+    this(toBeNodes, KDTree.DEFAULT_BUCKET_SIZE);
+  }
+
+  /**
+   * Constructor for VPTree.
+   *
+   * @param toBeNodes
+   *          - a list of KDables, to be laid out in the tree.
+   * @param bucketSize
+   *          - the most points kept in one leaf bucket, at least 1.
+   */
+  VPTree(List<T> toBeNodes, int bucketSize) throws IllegalArgumentException {
+    this(toBeNodes, bucketSize, StandardMetric.EUCLIDEAN);
+  }
+
+  /**
+   * Constructor for VPTree.
+   *
+   * @param toBeNodes
+   *          - a list of KDables, to be laid out in the tree.
+   * @param bucketSize
+   *          - the most points kept in one leaf bucket, at least 1.
+   * @param metric
+   *          - the metric to search under.
+   */
+  VPTree(List<T> toBeNodes, int bucketSize, Metric metric)
+      throws IllegalArgumentException {
+    if (toBeNodes.isEmpty()) {
+      throw new IllegalArgumentException("Input data must not be empty list");
+    }
+    if (bucketSize < 1) {
+      throw new IllegalArgumentException("Bucket size must be at least 1");
+    }
+    this.dims = toBeNodes.get(0).getCoordinates().length;
+    this.bucketSize = bucketSize;
+    this.metric = metric;
+    int size = toBeNodes.size();
+    for (T kdable : toBeNodes) {
+      if (kdable.getCoordinates().length != dims) {
+        throw new IllegalArgumentException(
+            "All KDables must have the same number of dimensions");
+      }
+    }
+
+    double[][] prepared = new double[size][];
+    for (int i = 0; i < size; i++) {
+      prepared[i] = metric.prepare(toBeNodes.get(i).getCoordinates());
+    }
+    int[] perm = new int[size];
+    for (int i = 0; i < size; i++) {
+      perm[i] = i;
+    }
+    this.radii = new double[size];
+    buildTree(prepared, perm, new double[size], new Random(SEED), 0, size);
+
+    this.kdables = new ArrayList<>(size);
+    this.points = new double[size * dims];
+    for (int slot = 0; slot < size; slot++) {
+      kdables.add(toBeNodes.get(perm[slot]));
+      System.arraycopy(prepared[perm[slot]], 0, points, slot * dims, dims);
+    }
+  }
+
+  /**
+   * Recursive build of the slots [lo, hi): picks a random vantage point into
+   * slot lo, then selects the median of the others' distances to it into
+   * mid, closer ones before and farther ones after.
+   *
+   * @param prepared
+   *          - the prepared coordinates of the KDables, by index.
+   * @param perm
+   *          - the permutation being built, slot to KDable index.
+   * @param distances
+   *          - scratch space for distances, by KDable index.
+   * @param random
+   *          - where vantage points are picked from.
+   * @param lo
+   *          - first slot of this subtree.
+   * @param hi
+   *          - one past the last slot of this subtree.
+   */
+  private void buildTree(double[][] prepared, int[] perm, double[] distances,
+      Random random, int lo, int hi) {
+    if (hi - lo <= bucketSize) {
+      return;
+    }
+    int pick = lo + random.nextInt(hi - lo);
+    int tmp = perm[lo];
+    perm[lo] = perm[pick];
+    perm[pick] = tmp;
+
+    double[] vantage = prepared[perm[lo]];
+    for (int slot = lo + 1; slot < hi; slot++) {
+      double[] c = prepared[perm[slot]];
+      distances[perm[slot]] = metric.toDistance(metric.key(vantage, c));
+    }
+    int mid = (lo + 1 + hi) >>> 1;
+    KDTree.select(perm, distances, lo + 1, hi, mid);
+    radii[lo] = distances[perm[mid]];
+
+    buildTree(prepared, perm, distances, random, lo + 1, mid);
+    buildTree(prepared, perm, distances, random, mid, hi);
+  }
+
+  @Override
+  public List<T> nearestNeighbor(T target1, int nn)
+      throws IllegalArgumentException {
+    if (nn < 1) {
+      throw new IllegalArgumentException("K must be at least 1");
+    }
+    return nearestNeighbor(target1.getCoordinates(), nn);
+  }
+
+  private List<T> nearestNeighbor(double[] target, int nn) {
+    checkDims(target);
+    NeighborHeap<T> heap = new NeighborHeap<>(nn);
+    new Search(metric.prepare(target), heap).nearest(0, kdables.size());
+    return heap.drainSorted();
+  }
+
+  @Override
+  public List<List<T>> nearestNeighbors(double[][] targets, int nn)
+      throws IllegalArgumentException {
+    if (nn < 1) {
+      throw new IllegalArgumentException("K must be at least 1");
+    }
+    return BatchSearch.run(targets.length, new IntFunction<List<T>>() {
+      @Override
+      public List<T> apply(int i) {
+        return nearestNeighbor(targets[i], nn);
+      }
+    });
+  }
+
+  @Override
+  public List<T> radiusSearch(double r, T target1)
+      throws IllegalArgumentException {
+    if (r < 0) {
+      throw new IllegalArgumentException(
+          "radius must be an integer greater than 0.");
+    }
+    double[] target = target1.getCoordinates();
+    checkDims(target);
+    NeighborHeap<T> heap = new NeighborHeap<>(Integer.MAX_VALUE);
+    new Search(metric.prepare(target), heap).radius(0, kdables.size(), r);
+    return heap.drainSorted();
+  }
+
+  private void checkDims(double[] target) {
+    if (target.length != dims) {
+      throw new IllegalArgumentException(
+          "Target must have " + dims + " dimensions");
+    }
+  }
+
+  /**
+   * The per-query state of a search; the tree itself is never written after
+   * construction.
+   */
+  private final class Search {
+    private final double[] target;
+    private final NeighborHeap<T> heap;
+
+    Search(double[] target, NeighborHeap<T> heap) {
+      this.target = target;
+      this.heap = heap;
+    }
+
+    private double distanceKey(int slot) {
+      int base = slot * dims;
+      double key = 0;
+      for (int d = 0; d < dims; d++) {
+        key = metric.accumulate(key, target[d] - points[base + d]);
+      }
+      return key;
+    }
+
+    /**
+     * Recursive nearest neighbor search over the slots [lo, hi). Goes into
+     * the side of the target first; the other side can be skipped when the
+     * triangle inequality puts all of it farther than the k-th candidate.
+     *
+     * @param lo
+     *          - first slot of the current subtree
+     * @param hi
+     *          - one past the last slot of the current subtree
+     */
+    void nearest(int lo, int hi) {
+      if (hi - lo <= bucketSize) {
+        for (int slot = lo; slot < hi; slot++) {
+          double key = distanceKey(slot);
+          if (key < heap.threshold()) {
+            heap.offer(kdables.get(slot), key);
+          }
+        }
+        return;
+      }
+      double key = distanceKey(lo);
+      if (key < heap.threshold()) {
+        heap.offer(kdables.get(lo), key);
+      }
+      double dist = metric.toDistance(key);
+      double radius = radii[lo];
+      int mid = (lo + 1 + hi) >>> 1;
+      if (dist < radius) {
+        nearest(lo + 1, mid);
+        if (radius - dist <= metric.toDistance(heap.threshold())) {
+          nearest(mid, hi);
+        }
+      } else {
+        nearest(mid, hi);
+        if (dist - radius <= metric.toDistance(heap.threshold())) {
+          nearest(lo + 1, mid);
+        }
+      }
+    }
+
+    /**
+     * Recursive radius search over the slots [lo, hi).
+     *
+     * @param lo
+     *          - first slot of the current subtree
+     * @param hi
+     *          - one past the last slot of the current subtree
+     * @param r
+     *          - the radius.
+     */
+    void radius(int lo, int hi, double r) {
+      double radiusKey = metric.toKey(r);
+      if (hi - lo <= bucketSize) {
+        for (int slot = lo; slot < hi; slot++) {
+          double key = distanceKey(slot);
+          if (key <= radiusKey) {
+            heap.offer(kdables.get(slot), key);
+          }
+        }
+        return;
+      }
+      double key = distanceKey(lo);
+      if (key <= radiusKey) {
+        heap.offer(kdables.get(lo), key);
+      }
+      double dist = metric.toDistance(key);
+      double radius = radii[lo];
+      int mid = (lo + 1 + hi) >>> 1;
+      if (dist - r <= radius) {
+        radius(lo + 1, mid, r);
+      }
+      if (dist + r >= radius) {
+        radius(mid, hi, r);
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    return this.kdables.size();
+  }
+
+  @Override
+  public int dimensions() {
+    return this.dims;
+  }
+}